@@ -0,0 +1,53 @@
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A STORE_BATCH. Its STORE_COMPLETE_BATCH reply goes out once every file that was sent STORE_TO has
+// either completed or failed; files refused up front already carry their status in st.
+public class CBat {
+  final Socket cs;
+  final String rid;
+  final Map<String, String> st;
+  final List<CDSIn> fs;
+  private final Set<String> pd;
+  private final AtomicInteger lf;
+  volatile TWheel.TO to;
+
+  CBat(Socket cs, String rid) {
+    this.cs = cs;
+    this.rid = rid;
+    st = Collections.synchronizedMap(new LinkedHashMap<>());
+    fs = new ArrayList<>();
+    pd = ConcurrentHashMap.newKeySet();
+    lf = new AtomicInteger();
+  }
+
+  // must be called before the batch is visible to acks
+  void ex(CDSIn f) {
+    st.put(f.fn, Protocol.OK_TOKEN);
+    fs.add(f);
+    pd.add(f.fn);
+    lf.incrementAndGet();
+  }
+
+  // records the outcome of fn; returns true for the call that settles the last pending file
+  boolean dn(String fn, String r) {
+    if (!pd.remove(fn)) return false;
+    st.put(fn, r);
+    return lf.decrementAndGet() == 0;
+  }
+
+  // the count then each filename and its status, as separate arguments
+  List<Object> rp() {
+    List<Object> a = new ArrayList<>(1 + 2 * st.size());
+    a.add(st.size());
+    synchronized (st) {
+      for (Map.Entry<String, String> e : st.entrySet()) {
+        a.add(e.getKey());
+        a.add(e.getValue());
+      }
+    }
+    return a;
+  }
+}
@@ -1,8 +1,13 @@
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class CDSIn {
+  // Transitions are STOR->STORFIN, STORFIN->DEL and DEL->DELFIN. They only happen through
+  // CFIdx.cas() while holding sl2, so any check-then-act on s must hold sl2 too.
   enum CDSMode {
     STOR,
     STORFIN,
@@ -11,18 +16,32 @@ public class CDSIn {
   }
 
   final String fn, fs;
-  final List<Socket> ds, bds;
+  final long sz, bs;
+  final List<Socket> ds, bds, sd;
+  final Set<Integer> rp;
   final Socket sl;
   final Object sl2;
-  CDSMode s;
+  volatile CDSMode s;
   int a;
+  volatile TWheel.TO to;
+  volatile CBat b;
+  volatile String rid;
   final List<Socket> lc;
+  // a striped file's blocks in order, or the file a block belongs to; set before the entry is indexed
+  CDSIn[] bk;
+  CDSIn hd;
 
   CDSIn(String n, String sz, CDSMode st, Socket sb) {
     fn = n;
     fs = sz;
-    ds = new ArrayList<>();
-    bds = new ArrayList<>();
+    // a striped file records its block size after its own, "size:blockSize", so the WAL keeps it
+    int c = sz.indexOf(':');
+    this.sz = ps(c < 0 ? sz : sz.substring(0, c));
+    bs = c < 0 ? 0 : ps(sz.substring(c + 1));
+    ds = new CopyOnWriteArrayList<>();
+    bds = new CopyOnWriteArrayList<>();
+    sd = new CopyOnWriteArrayList<>();
+    rp = ConcurrentHashMap.newKeySet();
     s = st;
     a = 0;
     sl = sb;
@@ -30,6 +49,14 @@ public class CDSIn {
     lc = new ArrayList<>();
   }
 
+  private static long ps(String sz) {
+    try {
+      return Long.parseLong(sz);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
   public void rd(Socket s) {
     ds.remove(s);
   }
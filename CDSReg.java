@@ -0,0 +1,155 @@
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CDSReg {
+  static class DSt {
+    final int p;
+    final Socket s;
+    final long cap;
+    final Set<CDSIn> hf;
+    final AtomicLong b, ob;
+    final AtomicInteger ot, ol;
+    volatile double tp;
+
+    DSt(int p, Socket s, long cap) {
+      this.p = p;
+      this.s = s;
+      this.cap = cap;
+      hf = ConcurrentHashMap.newKeySet();
+      b = new AtomicLong();
+      ob = new AtomicLong();
+      ot = new AtomicInteger();
+      ol = new AtomicInteger();
+    }
+
+    // bytes held plus bytes promised by STORE_TO but not yet acknowledged
+    long used() {
+      return b.get() + ob.get();
+    }
+
+    // exponentially weighted LOAD throughput in bytes per ms, 0 until the first LOAD completes
+    synchronized void lt(long sz, long ms) {
+      double x = (double) sz / Math.max(1, ms);
+      tp = tp == 0 ? x : 0.8 * tp + 0.2 * x;
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(p);
+    }
+  }
+
+  static class Ld {
+    final DSt d;
+    final long sz, st;
+    final AtomicBoolean dn;
+    volatile TWheel.TO to;
+
+    Ld(DSt d, long sz) {
+      this.d = d;
+      this.sz = sz;
+      st = System.currentTimeMillis();
+      dn = new AtomicBoolean();
+    }
+  }
+
+  private final Map<Integer, DSt> bp;
+  private final Map<Socket, DSt> bs;
+
+  CDSReg() {
+    bp = new ConcurrentHashMap<>();
+    bs = new ConcurrentHashMap<>();
+  }
+
+  // cap is the free space the Dstore reported when joining, or -1 if it did not report any
+  public synchronized boolean join(int p, Socket s, long cap) {
+    if (bp.containsKey(p) || bs.containsKey(s)) return false;
+    DSt d = new DSt(p, s, cap);
+    bs.put(s, d);
+    bp.put(p, d);
+    return true;
+  }
+
+  // returns the files the Dstore held, or null if s was not a registered Dstore
+  public synchronized Set<CDSIn> leave(Socket s) {
+    DSt d = bs.remove(s);
+    if (d == null) return null;
+    bp.remove(d.p, d);
+    return d.hf;
+  }
+
+  public DSt get(Socket s) {
+    return bs.get(s);
+  }
+
+  public int port(Socket s) {
+    DSt d = bs.get(s);
+    return d == null ? -1 : d.p;
+  }
+
+  public Socket socket(int p) {
+    DSt d = bp.get(p);
+    return d == null ? null : d.s;
+  }
+
+  public List<Integer> ports() {
+    return new ArrayList<>(bp.keySet());
+  }
+
+  public List<DSt> all() {
+    return new ArrayList<>(bp.values());
+  }
+
+  public int size() {
+    return bp.size();
+  }
+
+  // a transfer of f to s was promised in STORE_TO
+  public void expect(Socket s, CDSIn f) {
+    DSt d = bs.get(s);
+    if (d == null) return;
+    d.ot.incrementAndGet();
+    d.ob.addAndGet(f.sz);
+  }
+
+  // a promised transfer of f to s was acknowledged or abandoned
+  public void settle(Socket s, CDSIn f) {
+    DSt d = bs.get(s);
+    if (d == null) return;
+    d.ot.decrementAndGet();
+    d.ob.addAndGet(-f.sz);
+  }
+
+  // a LOAD_FROM naming d was sent; the load stays outstanding until endLoad
+  public Ld beginLoad(DSt d, CDSIn f) {
+    d.ol.incrementAndGet();
+    return new Ld(d, f.sz);
+  }
+
+  // ok means the client moved on without a RELOAD, so the elapsed time counts towards throughput
+  public void endLoad(Ld l, boolean ok) {
+    if (!l.dn.compareAndSet(false, true)) return;
+    if (l.to != null) l.to.cancel();
+    l.d.ol.decrementAndGet();
+    if (ok) l.d.lt(l.sz, System.currentTimeMillis() - l.st);
+  }
+
+  public void hold(Socket s, CDSIn f) {
+    DSt d = bs.get(s);
+    if (d != null && d.hf.add(f)) d.b.addAndGet(f.sz);
+  }
+
+  public void release(Socket s, CDSIn f) {
+    DSt d = bs.get(s);
+    if (d != null && d.hf.remove(f)) d.b.addAndGet(-f.sz);
+  }
+
+  public Set<CDSIn> held(Socket s) {
+    DSt d = bs.get(s);
+    return d == null ? Collections.emptySet() : Collections.unmodifiableSet(d.hf);
+  }
+}
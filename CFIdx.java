@@ -0,0 +1,62 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Blocks of striped files are indexed by name like any file but kept out of the per-mode name sets,
+// so LIST only shows what clients stored.
+public class CFIdx {
+  private final Map<String, CDSIn> bn;
+  private final Map<CDSIn.CDSMode, Set<String>> bs;
+
+  CFIdx() {
+    bn = new ConcurrentHashMap<>();
+    bs = new EnumMap<>(CDSIn.CDSMode.class);
+    for (CDSIn.CDSMode m : CDSIn.CDSMode.values()) bs.put(m, ConcurrentHashMap.newKeySet());
+  }
+
+  public CDSIn get(String fn) {
+    return bn.get(fn);
+  }
+
+  public boolean contains(String fn) {
+    return bn.containsKey(fn);
+  }
+
+  // returns the entry already indexed under f.fn, or null if f was added
+  public CDSIn add(CDSIn f) {
+    synchronized (f.sl2) {
+      CDSIn e = bn.putIfAbsent(f.fn, f);
+      if (e == null && f.hd == null) bs.get(f.s).add(f.fn);
+      return e;
+    }
+  }
+
+  public boolean cas(CDSIn f, CDSIn.CDSMode from, CDSIn.CDSMode to) {
+    synchronized (f.sl2) {
+      if (f.s != from) return false;
+      bs.get(from).remove(f.fn);
+      f.s = to;
+      if (bn.get(f.fn) == f && f.hd == null) bs.get(to).add(f.fn);
+      return true;
+    }
+  }
+
+  public boolean remove(CDSIn f) {
+    synchronized (f.sl2) {
+      if (!bn.remove(f.fn, f)) return false;
+      bs.get(f.s).remove(f.fn);
+      return true;
+    }
+  }
+
+  public Set<String> names(CDSIn.CDSMode s) {
+    return Collections.unmodifiableSet(bs.get(s));
+  }
+
+  public Collection<CDSIn> all() {
+    return bn.values();
+  }
+
+  public int size() {
+    return bn.size();
+  }
+}
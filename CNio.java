@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Selector based connection handling: one accepting thread plus a fixed set of I/O loops.
+// Inbound bytes are framed into '\n' terminated Protocol lines and tokenized in place, outbound lines
+// are queued per connection and flushed by the owning loop, so handlers never block on a socket.
+public class CNio {
+  interface LH {
+    void line(Socket s, Tok l) throws IOException;
+  }
+
+  interface CH {
+    void closed(Socket s);
+  }
+
+  private final int p;
+  private final LH lh;
+  private final CH ch;
+  private final Lp[] ls;
+  private final Map<SocketChannel, Cn> cs;
+  private int nl;
+
+  CNio(int p, int n, LH lh, CH ch) throws IOException {
+    this.p = p;
+    this.lh = lh;
+    this.ch = ch;
+    cs = new ConcurrentHashMap<>();
+    ls = new Lp[Math.max(1, n)];
+    for (int i = 0; i < ls.length; i++) ls[i] = new Lp(i);
+  }
+
+  public void run() throws IOException {
+    try (ServerSocketChannel ss = ServerSocketChannel.open()) {
+      ss.bind(new InetSocketAddress(p));
+      for (Lp l : ls) new Thread(l, "CNio-" + l.i).start();
+      while (true) {
+        SocketChannel c = ss.accept();
+        c.configureBlocking(false);
+        ls[Math.floorMod(nl++, ls.length)].add(c);
+      }
+    }
+  }
+
+  public void send(SocketChannel c, String m) throws IOException {
+    Cn cn = cs.get(c);
+    if (cn == null) throw new IOException("CNio send error: connection closed");
+    byte[] b = (m + "\n").getBytes(StandardCharsets.UTF_8);
+    synchronized (cn) {
+      cn.out.add(ByteBuffer.wrap(b));
+    }
+    cn.l.fq.add(cn);
+    cn.l.sel.wakeup();
+  }
+
+  private static class Cn {
+    final SocketChannel c;
+    final Lp l;
+    final Deque<ByteBuffer> out;
+    final Tok tk;
+    SelectionKey k;
+    byte[] lb;
+    int ln;
+
+    Cn(SocketChannel c, Lp l) {
+      this.c = c;
+      this.l = l;
+      out = new ArrayDeque<>();
+      lb = new byte[256];
+      tk = new Tok();
+    }
+  }
+
+  private class Lp implements Runnable {
+    final int i;
+    final Selector sel;
+    final Queue<SocketChannel> nq;
+    final Queue<Cn> fq;
+
+    Lp(int i) throws IOException {
+      this.i = i;
+      sel = Selector.open();
+      nq = new ConcurrentLinkedQueue<>();
+      fq = new ConcurrentLinkedQueue<>();
+    }
+
+    void add(SocketChannel c) {
+      nq.add(c);
+      sel.wakeup();
+    }
+
+    @Override
+    public void run() {
+      ByteBuffer rb = ByteBuffer.allocateDirect(16 * 1024);
+      while (true) {
+        try {
+          SocketChannel c;
+          while ((c = nq.poll()) != null) {
+            Cn cn = new Cn(c, this);
+            cs.put(c, cn);
+            cn.k = c.register(sel, SelectionKey.OP_READ, cn);
+          }
+          Cn f;
+          while ((f = fq.poll()) != null) {
+            try {
+              fl(f);
+            } catch (IOException e) {
+              cl(f);
+            }
+          }
+          sel.select();
+          Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey k = it.next();
+            it.remove();
+            Cn cn = (Cn) k.attachment();
+            try {
+              if (k.isValid() && k.isWritable()) fl(cn);
+              if (k.isValid() && k.isReadable()) rd(cn, rb);
+            } catch (IOException | CancelledKeyException e) {
+              cl(cn);
+            }
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    private void rd(Cn cn, ByteBuffer rb) throws IOException {
+      rb.clear();
+      if (cn.c.read(rb) < 0) {
+        cl(cn);
+        return;
+      }
+      rb.flip();
+      while (rb.hasRemaining()) {
+        byte b = rb.get();
+        if (b == '\n') {
+          cn.tk.text(cn.lb, cn.ln);
+          cn.ln = 0;
+          try {
+            lh.line(cn.c.socket(), cn.tk);
+          } catch (IOException e) {
+            // a reply to some other connection that has already closed, as send only fails for those; it
+            // says nothing about this one, which stays open and fails on its own next read or flush if it must
+            e.printStackTrace();
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
+        } else {
+          if (cn.ln == cn.lb.length) cn.lb = Arrays.copyOf(cn.lb, cn.ln * 2);
+          cn.lb[cn.ln++] = b;
+        }
+      }
+    }
+
+    private void fl(Cn cn) throws IOException {
+      if (!cn.k.isValid()) return;
+      synchronized (cn) {
+        while (!cn.out.isEmpty()) {
+          ByteBuffer b = cn.out.peek();
+          cn.c.write(b);
+          if (b.hasRemaining()) break;
+          cn.out.poll();
+        }
+        cn.k.interestOps(cn.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    private void cl(Cn cn) {
+      if (cs.remove(cn.c) == null) return;
+      cn.k.cancel();
+      try {
+        cn.c.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      ch.closed(cn.c.socket());
+    }
+  }
+}
@@ -0,0 +1,99 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Chooses the R Dstores named in STORE_TO and the replica named in LOAD_FROM. STORE candidates are
+// scored by the fraction of their reported capacity that is held or promised, or when some Dstore
+// did not report a capacity, by the bytes held or promised relative to the busiest candidate.
+// Lower scores are preferred.
+public class CPlace {
+  public enum PMode {
+    FIRST,
+    LEAST,
+    P2C,
+    WEIGHTED
+  }
+
+  private static final PMode m = gm();
+
+  public static PMode getMode() {
+    return m;
+  }
+
+  public static List<CDSReg.DSt> pick(List<CDSReg.DSt> c, int r, long sz) {
+    List<CDSReg.DSt> ok = new ArrayList<>(c.size());
+    for (CDSReg.DSt d : c) {
+      if (d.cap < 0 || d.used() + sz <= d.cap) ok.add(d);
+    }
+    if (ok.size() < r) return Collections.emptyList();
+    if (m == PMode.FIRST) return ok.subList(0, r);
+
+    Map<CDSReg.DSt, Double> sc = sc(ok, sz);
+    ThreadLocalRandom rn = ThreadLocalRandom.current();
+    List<CDSReg.DSt> sd = new ArrayList<>(r);
+    if (m == PMode.LEAST) {
+      ok.sort(Comparator.comparingDouble(sc::get));
+      sd.addAll(ok.subList(0, r));
+    } else if (m == PMode.P2C) {
+      while (sd.size() < r) {
+        CDSReg.DSt a = ok.get(rn.nextInt(ok.size()));
+        CDSReg.DSt b = ok.get(rn.nextInt(ok.size()));
+        CDSReg.DSt w = sc.get(b) < sc.get(a) ? b : a;
+        sd.add(w);
+        ok.remove(w);
+      }
+    } else {
+      while (sd.size() < r) {
+        double tw = 0;
+        for (CDSReg.DSt d : ok) tw += 1.0 / (1.0 + sc.get(d));
+        double x = rn.nextDouble() * tw;
+        CDSReg.DSt w = ok.get(ok.size() - 1);
+        for (CDSReg.DSt d : ok) {
+          x -= 1.0 / (1.0 + sc.get(d));
+          if (x <= 0) {
+            w = d;
+            break;
+          }
+        }
+        sd.add(w);
+        ok.remove(w);
+      }
+    }
+    return sd;
+  }
+
+  // power of two choices over outstanding LOADs, ties going to the higher recent throughput
+  public static CDSReg.DSt pickLoad(List<CDSReg.DSt> c) {
+    ThreadLocalRandom rn = ThreadLocalRandom.current();
+    CDSReg.DSt a = c.get(rn.nextInt(c.size()));
+    if (c.size() == 1) return a;
+    CDSReg.DSt b = c.get(rn.nextInt(c.size() - 1));
+    if (b == a) b = c.get(c.size() - 1);
+    int oa = a.ol.get(), ob = b.ol.get();
+    if (oa != ob) return oa < ob ? a : b;
+    return b.tp > a.tp ? b : a;
+  }
+
+  private static Map<CDSReg.DSt, Double> sc(List<CDSReg.DSt> c, long sz) {
+    boolean cap = true;
+    long mx = 1;
+    for (CDSReg.DSt d : c) {
+      if (d.cap <= 0) cap = false;
+      mx = Math.max(mx, d.used() + sz);
+    }
+    Map<CDSReg.DSt, Double> sc = new HashMap<>();
+    for (CDSReg.DSt d : c) {
+      sc.put(d, (double) (d.used() + sz) / (cap ? d.cap : mx));
+    }
+    return sc;
+  }
+
+  private static PMode gm() {
+    String v = System.getProperty("dfs.placement", "least");
+    try {
+      return PMode.valueOf(v.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      System.out.println("Unknown placement mode " + v + ", using least loaded");
+      return PMode.LEAST;
+    }
+  }
+}
@@ -0,0 +1,248 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Write-ahead log of Controller index mutations. Records are appended to wal.<gen>; every sn records
+// the live index is written to a snapshot tagged with the generation replay must resume from, and
+// older generations are deleted. Records set absolute per-file state, a file's whole replica set
+// included, so replaying a generation that the snapshot already partly reflects is harmless. Appends are
+// group committed: one disk write, made outside this monitor, covers every record queued before it.
+public class CWal {
+  static class Rec {
+    final String fn, fs;
+    CDSIn.CDSMode s;
+    final Set<Integer> rp;
+
+    Rec(String fn, String fs, CDSIn.CDSMode s) {
+      this.fn = fn;
+      this.fs = fs;
+      this.s = s;
+      rp = new HashSet<>();
+    }
+  }
+
+  private static final String SNAP = "snapshot", PFX = "wal.";
+
+  private final File d;
+  private final int sn;
+  private final boolean sy;
+  private final CFIdx sf;
+  private final AtomicBoolean snp;
+  // held while writing to disk; taken before this, never after
+  private final Object fk = new Object();
+  private FileOutputStream os;
+  private StringBuilder pb = new StringBuilder();
+  private long g, ws, fd;
+  private int n;
+
+  CWal(File d, int sn, boolean sy, CFIdx sf) {
+    this.d = d;
+    this.sn = sn;
+    this.sy = sy;
+    this.sf = sf;
+    snp = new AtomicBoolean();
+  }
+
+  public boolean on() {
+    return d != null;
+  }
+
+  public Map<String, Rec> recover() throws IOException {
+    Map<String, Rec> rs = new HashMap<>();
+    if (!on()) return rs;
+    if (!d.exists() && !d.mkdirs()) throw new IOException("WAL init error: cannot create " + d);
+    long sg = 0;
+    File sp = new File(d, SNAP);
+    if (sp.exists()) {
+      try (BufferedReader r = new BufferedReader(new FileReader(sp))) {
+        String l = r.readLine();
+        if (l != null && l.startsWith("SNAP ")) sg = Long.parseLong(l.substring(5).trim());
+        while ((l = r.readLine()) != null) rp(rs, l);
+      }
+    }
+    long lg = sg;
+    for (long wg : gens()) {
+      if (wg < sg) continue;
+      try (BufferedReader r = new BufferedReader(new FileReader(new File(d, PFX + wg)))) {
+        String l;
+        while ((l = r.readLine()) != null) rp(rs, l);
+      }
+      lg = Math.max(lg, wg);
+    }
+    rs.values().removeIf(rc -> rc.s == CDSIn.CDSMode.STOR);
+    synchronized (fk) {
+      synchronized (this) {
+        g = lg;
+      }
+      rot();
+    }
+    return rs;
+  }
+
+  public void st(CDSIn f) {
+    ap("S " + f.fn + " " + f.fs);
+  }
+
+  public void cp(CDSIn f) {
+    StringBuilder sb = new StringBuilder("C ").append(f.fn).append(' ').append(f.fs);
+    for (int p : f.rp) sb.append(' ').append(p);
+    ap(sb.toString());
+  }
+
+  // the replica set of f after a change, written whole; callers hold f's lock
+  public void rs(CDSIn f) {
+    StringBuilder sb = new StringBuilder("P ").append(f.fn);
+    for (int p : f.rp) sb.append(' ').append(p);
+    ap(sb.toString());
+  }
+
+  public void dl(String fn) {
+    ap("D " + fn);
+  }
+
+  public void x(String fn) {
+    ap("X " + fn);
+  }
+
+  private void ap(String l) {
+    if (!on()) return;
+    long q;
+    boolean s;
+    synchronized (this) {
+      pb.append(l).append('\n');
+      q = ++ws;
+      s = ++n >= sn;
+    }
+    // whoever gets here first writes out everything queued so far, so those behind it find their record already down
+    synchronized (fk) {
+      if (fd < q) {
+        try {
+          fl();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    if (s && snp.compareAndSet(false, true)) Exec.run(this::snapshot);
+  }
+
+  // must hold fk
+  private void fl() throws IOException {
+    StringBuilder b;
+    long q;
+    synchronized (this) {
+      b = pb;
+      pb = new StringBuilder();
+      q = ws;
+    }
+    os.write(b.toString().getBytes(StandardCharsets.UTF_8));
+    if (sy) os.getFD().sync();
+    fd = q;
+  }
+
+  public void snapshot() {
+    try {
+      long sg;
+      synchronized (fk) {
+        rot();
+        synchronized (this) {
+          sg = g;
+        }
+      }
+      File tmp = new File(d, SNAP + ".tmp");
+      try (FileOutputStream fo = new FileOutputStream(tmp); Writer sw = new BufferedWriter(new OutputStreamWriter(fo))) {
+        sw.write("SNAP " + sg + "\n");
+        for (CDSIn f : sf.all()) {
+          CDSIn.CDSMode s = f.s;
+          if (s != CDSIn.CDSMode.STORFIN && s != CDSIn.CDSMode.DEL) continue;
+          sw.write("F " + f.fn + " " + f.fs + " " + s);
+          for (int p : f.rp) sw.write(" " + p);
+          sw.write('\n');
+        }
+        sw.flush();
+        fo.getFD().sync();
+      }
+      Files.move(tmp.toPath(), new File(d, SNAP).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      for (long wg : gens()) {
+        if (wg < sg && !new File(d, PFX + wg).delete()) System.out.println("WAL error: cannot delete generation " + wg);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      snp.set(false);
+    }
+  }
+
+  // must hold fk; records queued while it runs go to the new generation
+  private void rot() throws IOException {
+    if (os != null) {
+      fl();
+      os.close();
+    }
+    synchronized (this) {
+      g++;
+      os = new FileOutputStream(new File(d, PFX + g), true);
+      n = 0;
+    }
+  }
+
+  private List<Long> gens() {
+    List<Long> gs = new ArrayList<>();
+    String[] fs = d.list();
+    if (fs == null) return gs;
+    for (String f : fs) {
+      if (!f.startsWith(PFX)) continue;
+      try {
+        gs.add(Long.parseLong(f.substring(PFX.length())));
+      } catch (NumberFormatException e) {
+        System.out.println("WAL error: ignoring " + f);
+      }
+    }
+    Collections.sort(gs);
+    return gs;
+  }
+
+  private static void rp(Map<String, Rec> rs, String l) {
+    String[] t = l.split(" ");
+    try {
+      Rec rc;
+      switch (t[0]) {
+        case "F":
+          rc = new Rec(t[1], t[2], CDSIn.CDSMode.valueOf(t[3]));
+          for (int i = 4; i < t.length; i++) rc.rp.add(Integer.parseInt(t[i]));
+          rs.put(t[1], rc);
+          break;
+        case "S":
+          rs.put(t[1], new Rec(t[1], t[2], CDSIn.CDSMode.STOR));
+          break;
+        case "C":
+          rc = new Rec(t[1], t[2], CDSIn.CDSMode.STORFIN);
+          for (int i = 3; i < t.length; i++) rc.rp.add(Integer.parseInt(t[i]));
+          rs.put(t[1], rc);
+          break;
+        case "P":
+          rc = rs.get(t[1]);
+          if (rc != null) {
+            rc.rp.clear();
+            for (int i = 2; i < t.length; i++) rc.rp.add(Integer.parseInt(t[i]));
+          }
+          break;
+        case "D":
+          rc = rs.get(t[1]);
+          if (rc != null) rc.s = CDSIn.CDSMode.DEL;
+          break;
+        case "X":
+          rs.remove(t[1]);
+          break;
+        default:
+          System.out.println("WAL error: unknown record " + l);
+      }
+    } catch (RuntimeException e) {
+      // a torn final record from a crash mid-append
+      System.out.println("WAL error: skipping record " + l);
+    }
+  }
+}
@@ -1,15 +1,82 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class Controller {
   private static int cp, r, t, rp;
-  private static final Set<CDSIn> sf = new HashSet<>();
-  private static final Map<Integer, Socket> ds = new HashMap<>();
-  private static final Map<Socket, List<Socket>> cld = new HashMap<>(), crd = new HashMap<>();
+  private static final CFIdx sf = new CFIdx();
+  private static final CDSReg dr = new CDSReg();
+  // keyed by the client socket, or by its Rq for tagged requests
+  private static final Map<Object, List<Socket>> cld = new ConcurrentHashMap<>(), crd = new ConcurrentHashMap<>();
+  private static final Map<Object, CDSReg.Ld> clo = new ConcurrentHashMap<>();
+  // a LOAD_HEDGE raced against the load in clo
+  private static final Map<Object, CDSReg.Ld> chd = new ConcurrentHashMap<>();
+  private static final ThreadLocal<Rq> rq = new ThreadLocal<>();
+  private static final Set<Socket> bin = ConcurrentHashMap.newKeySet();
+  private static final Map<Integer, Set<CDSIn>> rwp = new ConcurrentHashMap<>();
+  private static final Wire.H[] hs = new Wire.H[Wire.ops()];
+  private static final int RL = Wire.op(Protocol.RELOAD_TOKEN), HG = Wire.op(Protocol.LOAD_HEDGE_TOKEN);
+  // blocks of a striped file are indexed as "fn#i" alongside client files, so no client name may hold BSEP
+  private static final String BSEP = "#";
+  private static final long BS = Long.getLong("dfs.block.size", 8L << 20);
   private static CLogger cl;
   private static ServerSocket cs;
+  private static CNio nio;
+  private static CWal wal;
+
+  // A request tagged "#id COMMAND ...". Tagged requests run concurrently and every reply to them
+  // carries the same tag, so a client can keep many in flight on one connection.
+  static class Rq {
+    final Socket s;
+    final String id;
+
+    Rq(Socket s, String id) {
+      this.s = s;
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Rq && ((Rq) o).s == s && ((Rq) o).id.equals(id);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * s.hashCode() + id.hashCode();
+    }
+  }
+
+  static {
+    hn(Protocol.JOIN_TOKEN, (s, ps) -> hJ(s, ps.nextInt(), ps.hasNextLong() ? ps.nextLong() : -1));
+    hn(Protocol.LIST_TOKEN, (s, ps) -> hL(s));
+    hn(Protocol.STORE_TOKEN, (s, ps) -> hS(s, ps.next(), ps.next()));
+    hn(Protocol.STORE_ACK_TOKEN, (s, ps) -> hSA(s, ps.next()));
+    hn(Protocol.REMOVE_ACK_TOKEN, (s, ps) -> hRA(s, ps.next()));
+    hn(Protocol.LOAD_TOKEN, (s, ps) -> hLO(s, ps.next()));
+    hn(Protocol.RELOAD_TOKEN, (s, ps) -> hR(s, ps.next(), false));
+    hn(Protocol.LOAD_HEDGE_TOKEN, (s, ps) -> hR(s, ps.next(), true));
+    hn(Protocol.REMOVE_TOKEN, (s, ps) -> hRM(s, ps.next()));
+    hn(Protocol.STORE_BATCH_TOKEN, Controller::hSB);
+    hn(Protocol.STORE_ACK_BATCH_TOKEN, (s, ps) -> {
+      for (String fn : bl(ps)) hSA(s, fn);
+    });
+    hn(Protocol.REMOVE_ACK_BATCH_TOKEN, (s, ps) -> {
+      for (String fn : bl(ps)) hRA(s, fn);
+    });
+    hn(Protocol.LOAD_BATCH_TOKEN, Controller::hLB);
+    hn(Protocol.REMOVE_BATCH_TOKEN, Controller::hRMB);
+    hn(Protocol.STORE_BLOCKS_TOKEN, (s, ps) -> hSK(s, ps.next(), ps.nextLong()));
+    hn(Protocol.LOAD_BLOCKS_TOKEN, (s, ps) -> hLK(s, ps.next(), false));
+    hn(Protocol.LOAD_REPLICAS_TOKEN, (s, ps) -> hLK(s, ps.next(), true));
+    // binary framing is only offered as the first line on a blocking connection
+    hn(Protocol.PROTOCOL_TOKEN, (s, ps) -> tm(Protocol.PROTOCOL_TOKEN, Protocol.TEXT_TOKEN, s));
+  }
+
+  private static void hn(String c, Wire.H h) {
+    hs[Wire.op(c)] = h;
+  }
 
   public static void main(String[] a) {
     if (a.length < 4) {
@@ -29,7 +96,7 @@ public class Controller {
       return;
     }
     try {
-      CLogger.init(Logger.LMode.CONSOLEFILE);
+      CLogger.init(Logger.LMode.valueOf(System.getProperty("dfs.log", "CONSOLEFILE")));
       System.out.println("The Controller's Logger has been initialised");
       cl = CLogger.getInstance();
       cl.logString("Controller initiated, Listening on port " + cp + "; Replication Factor: " + r + "; Timeout: " + t + "ms; Rebalance Period: " + rp + "ms");
@@ -38,19 +105,65 @@ public class Controller {
       e.printStackTrace();
       return;
     }
+    lg("Executor mode: " + Exec.getMode() + "; Placement: " + CPlace.getMode() + "; Block size: " + BS);
     try {
-      cs = new ServerSocket(cp);
-      while (true) l();
+      String wd = System.getProperty("dfs.wal.dir");
+      wal = new CWal(wd == null ? null : new File(wd), Integer.getInteger("dfs.wal.snapshot", 100000), Boolean.getBoolean("dfs.wal.sync"), sf);
+      rcv();
+    } catch (IOException e) {
+      lg("Unable to recover the index from " + System.getProperty("dfs.wal.dir"));
+      e.printStackTrace();
+      return;
+    }
+    try {
+      if ("nio".equals(System.getProperty("dfs.io"))) {
+        int n = Integer.getInteger("dfs.io.threads", Runtime.getRuntime().availableProcessors());
+        lg("Using non-blocking I/O with " + n + " event loops");
+        nio = new CNio(cp, n, Controller::hl, Controller::dc);
+        nio.run();
+      } else {
+        cs = new ServerSocket(cp);
+        while (true) l();
+      }
     } catch (IOException e) {
       lg("Unable to bind to Controller Port: " + cp);
       e.printStackTrace();
     }
   }
 
+  private static void rcv() throws IOException {
+    if (!wal.on()) return;
+    long st = System.currentTimeMillis();
+    Map<String, CWal.Rec> rs = wal.recover();
+    Map<String, CDSIn> fm = new HashMap<>();
+    for (CWal.Rec rc : rs.values()) {
+      CDSIn f = new CDSIn(rc.fn, rc.fs, rc.s, null);
+      f.rp.addAll(rc.rp);
+      fm.put(f.fn, f);
+    }
+    // blocks are linked to their file before they are indexed, which keeps them out of LIST
+    for (CDSIn f : fm.values()) {
+      if (f.bs <= 0) continue;
+      f.bk = new CDSIn[nb(f.sz, f.bs)];
+      for (int i = 0; i < f.bk.length; i++) {
+        CDSIn b = fm.get(f.fn + BSEP + i);
+        if (b == null) continue;
+        b.hd = f;
+        f.bk[i] = b;
+      }
+    }
+    for (CDSIn f : fm.values()) {
+      sf.add(f);
+      for (int p : f.rp) rwp.computeIfAbsent(p, k -> ConcurrentHashMap.newKeySet()).add(f);
+    }
+    wal.snapshot();
+    lg("Recovered " + rs.size() + " files in " + (System.currentTimeMillis() - st) + "ms");
+  }
+
   private static void l() {
     try {
       final Socket rs = cs.accept();
-      new Thread(() -> hr(rs)).start();
+      Exec.serve(() -> hr(rs));
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -58,61 +171,134 @@ public class Controller {
 
   private static void hcm(Socket rs) {
     try {
-      BufferedReader cr = new BufferedReader(new InputStreamReader(rs.getInputStream()));
-      String l;
-      while ((l = cr.readLine()) != null) {
-        cl.messageReceived(rs, l);
-        Scanner s = new Scanner(l);
-        String c = s.next();
-        hc(c, s, rs);
+      InputStream in = new BufferedInputStream(rs.getInputStream());
+      Tok tk = new Tok();
+      while (tk.line(in)) {
+        if (!tk.hs()) {
+          hl(rs, tk);
+          continue;
+        }
+        cl.messageReceived(rs, tk.toString());
+        tm(Protocol.PROTOCOL_TOKEN, Protocol.BINARY_TOKEN, rs);
+        bin.add(rs);
+        while (Wire.read(in, tk)) hl(rs, tk);
+        break;
       }
     } catch (IOException e) {
-      hdc(rs);
+      lg("Connection lost: " + rs.getRemoteSocketAddress() + " (" + e.getMessage() + ")");
+      // a refused frame leaves the stream unusable, and closing is how the peer learns of it
+      try {
+        rs.close();
+      } catch (IOException x) {
+        x.printStackTrace();
+      }
+    } finally {
+      dc(rs);
     }
   }
 
-  private static void hdc(Socket s) {
-    if (gdp(s) != -1) {
-      for (CDSIn f : sf) {
-        if (f.ds.contains(s)) {
-          f.bds.add(s);
-        }
-        if (f.ds.isEmpty()) {
-          sf.remove(f);
+  private static void hl(Socket rs, Tok tk) throws IOException {
+    if (cl.on()) cl.messageReceived(rs, tk.toString());
+    if (!tk.cmd()) return;
+    String id = tk.tag();
+    if (id == null) {
+      hm(rs, tk);
+      return;
+    }
+    Rq q = new Rq(rs, id);
+    Tok c = tk.copy();
+    Exec.run(() -> {
+      rq.set(q);
+      try {
+        hm(rs, c);
+      } catch (IOException e) {
+        lg("Error handling request " + q.id + " from " + rs.getRemoteSocketAddress());
+        e.printStackTrace();
+      } finally {
+        rq.remove();
+      }
+    });
+  }
+
+  private static void hm(Socket rs, Tok tk) throws IOException {
+    if (tk.op != HG) {
+      Object k = ck(rs);
+      CDSReg.Ld ld = clo.remove(k), hd = chd.remove(k);
+      // which of a hedged pair won is not known, so neither counts towards throughput
+      if (ld != null) dr.endLoad(ld, hd == null && tk.op != RL);
+      if (hd != null) dr.endLoad(hd, false);
+    }
+    hc(tk, rs);
+  }
+
+  // the key load state is tracked under: the socket, or the current request when it is tagged
+  private static Object ck(Socket cs) {
+    Rq q = rq.get();
+    return q != null && q.s == cs ? q : cs;
+  }
+
+  private static String rid(Socket cs) {
+    Rq q = rq.get();
+    return q != null && q.s == cs ? q.id : null;
+  }
+
+  private static void dc(Socket s) {
+    bin.remove(s);
+    Wire.drop(s);
+    cld.keySet().removeIf(k -> k == s || k instanceof Rq && ((Rq) k).s == s);
+    crd.keySet().removeIf(k -> k == s || k instanceof Rq && ((Rq) k).s == s);
+    for (Map<Object, CDSReg.Ld> m : Arrays.asList(clo, chd)) {
+      for (Object k : m.keySet()) {
+        if (k != s && !(k instanceof Rq && ((Rq) k).s == s)) continue;
+        CDSReg.Ld ld = m.remove(k);
+        if (ld != null) dr.endLoad(ld, false);
+      }
+    }
+    int p = dr.port(s);
+    if (p != -1) {
+      hdc(s, p);
+      lg("Dstore " + p + " disconnected");
+    }
+  }
+
+  // a file goes once no Dstore that holds it is left, but a recovered one whose other replicas have not
+  // rejoined yet may still be on them: then only this socket goes, the entry and its WAL record stay, and
+  // p is waited for again along with them
+  private static void hdc(Socket s, int p) {
+    Set<CDSIn> hf = dr.leave(s);
+    if (hf == null) return;
+    for (CDSIn f : hf) {
+      f.bds.add(s);
+      synchronized (f.sl2) {
+        if (!fd(f).isEmpty()) continue;
+        if (rwt(f)) {
+          rwp.computeIfAbsent(p, k -> ConcurrentHashMap.newKeySet()).add(f);
+        } else if (sf.remove(f)) {
+          wal.x(f.fn);
         }
       }
     }
   }
 
-  private static void cc(Socket rs) {
-    synchronized (ds) {
-      rd(rs);
+  // whether a replica of f recovered from the WAL is still waiting for its Dstore to rejoin; callers hold f.sl2
+  private static boolean rwt(CDSIn f) {
+    for (int p : f.rp) {
+      Set<CDSIn> w = rwp.get(p);
+      if (w != null && w.contains(f)) return true;
     }
-    lg("Closed: " + rs.getRemoteSocketAddress());
+    return false;
   }
 
   private static void hr(Socket rs) {
     hcm(rs);
   }
 
-  private static void hc(String c, Scanner ps, Socket rs) throws IOException {
+  private static void hc(Tok ps, Socket rs) throws IOException {
+    Wire.H h = ps.op < 0 ? null : hs[ps.op];
+    if (h == null) return;
     rs.setSoTimeout(t);
-    try (ps) {
-      if (c.equals(Protocol.JOIN_TOKEN)) {
-        hJ(rs, ps.nextInt());
-      } else if (c.equals(Protocol.LIST_TOKEN)) {
-        hL(rs);
-      } else if (c.equals(Protocol.STORE_TOKEN)) {
-        hS(rs, ps.next(), ps.next());
-      } else if (c.equals(Protocol.STORE_ACK_TOKEN)) {
-        hSA(rs, ps.next());
-      } else if (c.equals(Protocol.LOAD_TOKEN)) {
-        hLO(rs, ps.next());
-      } else if (c.equals(Protocol.RELOAD_TOKEN)) {
-        hR(rs, ps.next());
-      } else if (c.equals(Protocol.REMOVE_TOKEN)) {
-        hRM(rs, ps.next());
-      }
+    try {
+      h.h(rs, ps);
     } catch (NoSuchElementException e) {
       lg("Invalid request format");
       e.printStackTrace();
@@ -121,29 +307,40 @@ public class Controller {
     }
   }
 
-  private static void hJ(Socket s, int p) {
-    synchronized (ds) {
-      ds.putIfAbsent(p, s);
+  private static void hJ(Socket s, int p, long fr) {
+    if (!dr.join(p, s, fr)) {
+      lg("Dstore " + p + " already joined");
+      return;
     }
     cl.dstoreJoined(s, p);
-    new Thread(() -> {
-      try {
-        BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()));
-        while (r.readLine() != null) {
-        }
-      } catch (IOException e) {
-        synchronized (ds) {
-          ds.remove(p);
+    if (fr >= 0) lg("Dstore " + p + " reports " + fr + " bytes free");
+    Set<CDSIn> rf = rwp.get(p);
+    if (rf == null) return;
+    int n = 0;
+    for (CDSIn f : rf) {
+      // a file leaves the waiting set and gains this socket in one step, so hdc never sees it in neither
+      synchronized (f.sl2) {
+        rf.remove(f);
+        if (sf.get(f.fn) != f || !f.rp.contains(p)) continue;
+        f.ds.add(s);
+      }
+      dr.hold(s, f);
+      n++;
+      if (f.s == CDSIn.CDSMode.DEL) {
+        try {
+          tm(Protocol.REMOVE_TOKEN, Collections.singletonList(f.fn), s);
+        } catch (IOException e) {
+          e.printStackTrace();
         }
-        lg("Dstore " + p + " disconnected");
       }
-    }).start();
+    }
+    lg("Reattached " + n + " recovered files to Dstore " + p);
   }
 
   private static void hL(Socket cs) throws IOException {
-    if (ds.size() >= r) {
-      Set<String> fn = gfn(CDSIn.CDSMode.STORFIN);
-      tm(Protocol.LIST_TOKEN, cts(fn), cs);
+    if (dr.size() >= r) {
+      Set<String> fn = sf.names(CDSIn.CDSMode.STORFIN);
+      tm(Protocol.LIST_TOKEN, fn, cs);
       lg("Sent file list: " + cts(fn));
     } else {
       tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
@@ -152,11 +349,11 @@ public class Controller {
   }
 
   private static boolean csf(Socket cs, String fn) throws IOException {
-    if (ds.size() < r) {
+    if (dr.size() < r) {
       lg("Insufficient Dstores for " + fn);
       tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
       return false;
-    } else if (gfn(CDSIn.CDSMode.values()).contains(fn)) {
+    } else if (sf.contains(fn)) {
       lg(fn + " exists");
       tm(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN, cs);
       return false;
@@ -165,276 +362,632 @@ public class Controller {
   }
 
   private static void hS(Socket cs, String fn, String fs) throws IOException {
-    synchronized (sf) {
-      boolean fileExists = gfn(CDSIn.CDSMode.values()).contains(fn);
-      if (ds.size() < r) {
-        lg("Insufficient Dstores for " + fn);
-        tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
-        return;
+    if (dr.size() < r) {
+      lg("Insufficient Dstores for " + fn);
+      tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+      return;
+    }
+    CDSIn nf = new CDSIn(fn, fs, CDSIn.CDSMode.STOR, cs);
+    nf.rid = rid(cs);
+    if (bn(fn) || sf.add(nf) != null) {
+      lg(fn + " exists");
+      tm(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN, cs);
+      return;
+    }
+
+    List<CDSReg.DSt> sd = CPlace.pick(dr.all(), r, nf.sz);
+    if (sd.isEmpty()) {
+      sf.remove(nf);
+      lg("Insufficient Dstore capacity for " + fn);
+      tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+      return;
+    }
+    for (CDSReg.DSt d : sd) {
+      nf.sd.add(d.s);
+      dr.expect(d.s, nf);
+    }
+    wal.st(nf);
+    lg("Storing " + fn + " in " + cts(sd));
+    tm(Protocol.STORE_TO_TOKEN, sd, cs);
+
+    nf.to = TWheel.schedule(t, () -> {
+      if (!sfl(nf)) return;
+      lg(fn + " store failed");
+      try {
+        tm(Protocol.ERROR_STORE_TOKEN, null, cs, nf.rid);
+      } catch (IOException e) {
+        e.printStackTrace();
       }
-      CDSIn nf = new CDSIn(fn, fs, CDSIn.CDSMode.STOR, cs);
-      sf.add(nf);
+    });
+  }
 
-      List<Integer> ad = new ArrayList<>(ds.keySet());
-      List<Integer> sd = ad.subList(0, Math.min(r, ad.size()));
-      String sds = cts(sd);
-      lg("Storing " + fn + " in " + sds);
-      tm(Protocol.STORE_TO_TOKEN, sds, cs);
+  // undoes a store that has not completed; returns false if it completed first
+  private static boolean sfl(CDSIn nf) {
+    synchronized (nf.sl2) {
+      if (nf.s != CDSIn.CDSMode.STOR) return false;
+      sf.remove(nf);
+      for (Socket d : nf.ds) dr.release(d, nf);
+      for (Socket d : nf.sd) {
+        if (nf.sd.remove(d)) dr.settle(d, nf);
+      }
+      wal.x(nf.fn);
+      return true;
+    }
+  }
 
-      if (fileExists) {
-        lg(fn + " exists");
+  // A striped store: fn is cut into blocks of BS bytes, indexed as "fn#i" and each placed on R Dstores of
+  // its own, so the blocks of one file spread over the cluster. The client stores each block as an ordinary
+  // file and the file completes with its last block.
+  private static void hSK(Socket cs, String fn, long fs) throws IOException {
+    if (fs < 0) throw new InputMismatchException(Long.toString(fs));
+    if (dr.size() < r) {
+      lg("Insufficient Dstores for " + fn);
+      tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+      return;
+    }
+    CDSIn hf = new CDSIn(fn, fs + ":" + BS, CDSIn.CDSMode.STOR, cs);
+    hf.rid = rid(cs);
+    hf.bk = new CDSIn[nb(fs, BS)];
+    if (bn(fn) || sf.add(hf) != null) {
+      lg(fn + " exists");
+      tm(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN, cs);
+      return;
+    }
+    wal.st(hf);
+    List<Object> a = new ArrayList<>(Arrays.asList(BS, hf.bk.length));
+    for (int i = 0; i < hf.bk.length; i++) {
+      CDSIn b = new CDSIn(fn + BSEP + i, Long.toString(Math.min(BS, fs - i * BS)), CDSIn.CDSMode.STOR, cs);
+      b.hd = hf;
+      if (sf.add(b) != null) {
+        sbf(hf);
+        lg(b.fn + " exists");
         tm(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN, cs);
         return;
       }
+      hf.bk[i] = b;
+      List<CDSReg.DSt> sd = CPlace.pick(dr.all(), r, b.sz);
+      if (sd.isEmpty()) {
+        sbf(hf);
+        lg("Insufficient Dstore capacity for " + b.fn);
+        tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+        return;
+      }
+      for (CDSReg.DSt d : sd) {
+        b.sd.add(d.s);
+        dr.expect(d.s, b);
+      }
+      wal.st(b);
+      a.add(b.fn);
+      a.addAll(sd);
+    }
+    lg("Storing " + fn + " in " + hf.bk.length + " blocks");
+    tm(Protocol.STORE_TO_BLOCKS_TOKEN, a, cs);
 
-      new Thread(() -> {
-        try {
-          Thread.sleep(t);
-          if (nf.a < r) {
-            //sf.remove(nf);
-            lg(fn + " store failed");
-            try {
-              tm(Protocol.ERROR_STORE_TOKEN, cs);
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          }
-        } catch (InterruptedException e) {
-          e.printStackTrace();
+    hf.to = TWheel.schedule(t, () -> {
+      if (!sbf(hf)) return;
+      lg(fn + " store failed");
+      try {
+        tm(Protocol.ERROR_STORE_TOKEN, null, cs, hf.rid);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+  }
+
+  private static int nb(long sz, long bs) {
+    return (int) Math.max(1, (sz + bs - 1) / bs);
+  }
+
+  // undoes a striped store that has not completed, along with the blocks that have
+  private static boolean sbf(CDSIn hf) {
+    synchronized (hf.sl2) {
+      if (hf.s != CDSIn.CDSMode.STOR) return false;
+      for (CDSIn b : hf.bk) {
+        if (b == null || sfl(b)) continue;
+        synchronized (b.sl2) {
+          if (!sf.remove(b)) continue;
+          for (Socket d : b.ds) dr.release(d, b);
+          wal.x(b.fn);
         }
-      }).start();
+      }
+      sf.remove(hf);
+      wal.x(hf.fn);
+      return true;
+    }
+  }
+
+  // a block was stored; the file completes once all of them are
+  private static void hbc(CDSIn hf) throws IOException {
+    synchronized (hf.sl2) {
+      if (sf.get(hf.fn) != hf) return;
+      for (CDSIn b : hf.bk) {
+        if (b == null || b.s != CDSIn.CDSMode.STORFIN) return;
+      }
+      if (!sf.cas(hf, CDSIn.CDSMode.STOR, CDSIn.CDSMode.STORFIN)) return;
+      if (hf.to != null) hf.to.cancel();
+      wal.cp(hf);
+      lg(hf.fn + " stored in " + hf.bk.length + " blocks");
+      tm(Protocol.STORE_COMPLETE_TOKEN, null, hf.sl, hf.rid);
+    }
+  }
+
+  // one index pass and one placement for the whole batch; every accepted file goes to the same Dstores
+  private static void hSB(Socket cs, Tok ps) throws IOException {
+    int n = ps.nextInt();
+    String[] fn = new String[n], fs = new String[n];
+    for (int i = 0; i < n; i++) {
+      fn[i] = ps.next();
+      fs[i] = ps.next();
+    }
+    if (dr.size() < r) {
+      lg("Insufficient Dstores for a batch of " + n);
+      tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+      return;
+    }
+    CBat b = new CBat(cs, rid(cs));
+    long tsz = 0;
+    for (int i = 0; i < n; i++) {
+      CDSIn nf = new CDSIn(fn[i], fs[i], CDSIn.CDSMode.STOR, cs);
+      nf.b = b;
+      if (bn(fn[i]) || sf.add(nf) != null) {
+        b.st.put(fn[i], Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+        continue;
+      }
+      b.ex(nf);
+      tsz += nf.sz;
+    }
+
+    List<CDSReg.DSt> sd = b.fs.isEmpty() ? Collections.emptyList() : CPlace.pick(dr.all(), r, tsz);
+    if (sd.isEmpty()) {
+      for (CDSIn nf : b.fs) {
+        sf.remove(nf);
+        b.st.put(nf.fn, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      }
+      b.fs.clear();
+    }
+    for (CDSIn nf : b.fs) {
+      for (CDSReg.DSt d : sd) {
+        nf.sd.add(d.s);
+        dr.expect(d.s, nf);
+      }
+      wal.st(nf);
+    }
+    lg("Storing a batch of " + b.fs.size() + "/" + n + " files in " + cts(sd));
+    List<Object> a = new ArrayList<>();
+    a.add(sd.size());
+    a.addAll(sd);
+    a.addAll(b.rp());
+    tm(Protocol.STORE_TO_BATCH_TOKEN, a, cs);
+    if (b.fs.isEmpty()) {
+      tm(Protocol.STORE_COMPLETE_BATCH_TOKEN, b.rp(), cs);
+      return;
+    }
+
+    b.to = TWheel.schedule(t, () -> {
+      for (CDSIn nf : b.fs) {
+        if (sfl(nf) && b.dn(nf.fn, Protocol.ERROR_STORE_TOKEN)) sbc(b);
+      }
+    });
+  }
+
+  private static void sbc(CBat b) {
+    if (b.to != null) b.to.cancel();
+    lg("Batch stored: " + b.st.size() + " files");
+    try {
+      tm(Protocol.STORE_COMPLETE_BATCH_TOKEN, b.rp(), b.cs, b.rid);
+    } catch (IOException e) {
+      e.printStackTrace();
     }
   }
 
   private static void ha(CDSIn f, String fn) throws IOException {
+    boolean bc = false;
     synchronized (f.sl2) {
       int ac = ++f.a;
       lg(fn + " ack " + ac);
-      if (f.a >= r) {
-        f.s = CDSIn.CDSMode.STORFIN;
+      if (f.a >= r && sf.cas(f, CDSIn.CDSMode.STOR, CDSIn.CDSMode.STORFIN)) {
+        if (f.to != null) f.to.cancel();
+        wal.cp(f);
         lg(fn + " stored");
-        tm(Protocol.STORE_COMPLETE_TOKEN, f.sl);
+        if (f.hd != null) bc = true;
+        else if (f.b == null) tm(Protocol.STORE_COMPLETE_TOKEN, null, f.sl, f.rid);
+        else if (f.b.dn(fn, Protocol.OK_TOKEN)) sbc(f.b);
+      } else if (f.s == CDSIn.CDSMode.STORFIN) {
+        wal.rs(f);
       }
     }
+    // outside the block's lock, since sbf takes the file's lock first
+    if (bc) hbc(f.hd);
   }
 
   private static void hSA(Socket d, String fn) throws IOException {
-    CDSIn f = gfbn(fn);
+    CDSIn f = sf.get(fn);
     if (f == null) return;
+    if (f.sd.remove(d)) dr.settle(d, f);
+    int dp = dr.port(d);
     f.ds.add(d);
+    f.rp.add(dp);
+    dr.hold(d, f);
     ha(f, fn);
   }
 
+  // the entry a client addresses as fn; blocks of striped files are only reachable through their file
+  // a name in the block namespace, which a store answers as already taken
+  private static boolean bn(String fn) {
+    return fn.contains(BSEP);
+  }
+
+  private static CDSIn lf(String fn) {
+    CDSIn f = sf.get(fn);
+    return f == null || f.hd != null ? null : f;
+  }
+
   private static List<Socket> fd(CDSIn df) {
     return df.ds.stream()
             .filter(ds -> !df.bds.contains(ds))
             .collect(Collectors.toList());
   }
 
-  private static int gdp(Socket ds) {
-    for (Map.Entry<Integer, Socket> e : Controller.ds.entrySet()) {
-      if (e.getValue().equals(ds)) {
-        return e.getKey();
-      }
-    }
-    return -1;
-  }
-
   private static void hLO(Socket cs, String fn) throws IOException {
-    synchronized (sf) {
-      if (ds.size() < r) {
-        tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
-        lg("Insufficient Dstores to load " + fn);
-        return;
-      }
-      CDSIn df = gfbn(fn);
-      if (df == null || df.s != CDSIn.CDSMode.STORFIN) {
-        tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, cs);
-        lg(fn + " not found");
-        return;
-      }
-      synchronized (df) {
-        List<Socket> ad = new ArrayList<>(df.ds);
-        ad.removeAll(df.bds);
-        List<Socket> td = cld.getOrDefault(cs, new ArrayList<>());
-        ad.removeAll(td);
-        if (!ad.isEmpty()) {
-          Random r = new Random();
-          int ri = r.nextInt(ad.size());
-          Socket sd = ad.get(ri);
-          td.add(sd);
-          cld.put(cs, td);
-          int dp = gdp(sd);
-          if (dp != -1) {
-            tm(Protocol.LOAD_FROM_TOKEN, dp + " " + df.fs, cs);
-            return;
-          } else {
-            lg("Dstore port not found for " + sd);
-          }
-        }
-      }
+    if (dr.size() < r) {
+      tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+      lg("Insufficient Dstores to load " + fn);
+      return;
+    }
+    CDSIn df = lf(fn);
+    if (df == null || df.s != CDSIn.CDSMode.STORFIN) {
+      tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, cs);
+      lg(fn + " not found");
+      return;
+    }
+    if (df.bk != null) {
       tm(Protocol.ERROR_LOAD_TOKEN, cs);
-      lg("No available Dstores to load " + fn);
-      cld.remove(cs);
+      lg(fn + " is striped and loads by " + Protocol.LOAD_BLOCKS_TOKEN);
+      return;
+    }
+    List<Socket> ad = new ArrayList<>(df.ds);
+    ad.removeAll(df.bds);
+    List<Socket> td = new ArrayList<>();
+    Object k = ck(cs);
+    cld.put(k, td);
+    crd.remove(k);
+    CDSReg.DSt sd = pld(ad);
+    if (sd != null) {
+      td.add(sd.s);
+      sld(cs, df, sd, clo);
+      return;
     }
+    tm(Protocol.ERROR_LOAD_TOKEN, cs);
+    lg("No available Dstores to load " + fn);
+    cld.remove(k);
   }
 
-  private static void hR(Socket cs, String fn) throws IOException {
-    CDSIn df = gfbn(fn);
+  // A hedge is a RELOAD sent while the current load is still running: it names a replica not yet tried, and
+  // the current load stays outstanding beside it. Both are recorded as tried, so a later RELOAD skips them.
+  private static void hR(Socket cs, String fn, boolean hg) throws IOException {
+    CDSIn df = lf(fn);
     if (df == null || df.s != CDSIn.CDSMode.STORFIN) {
       tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, cs);
       lg(fn + " not found");
       return;
     }
+    if (df.bk != null) {
+      tm(Protocol.ERROR_LOAD_TOKEN, cs);
+      lg(fn + " is striped and loads by " + Protocol.LOAD_BLOCKS_TOKEN);
+      return;
+    }
     List<Socket> ad = new ArrayList<>(df.ds);
     ad.removeAll(df.bds);
-    List<Socket> lld = cld.getOrDefault(cs, new ArrayList<>());
+    Object k = ck(cs);
+    List<Socket> lld = cld.getOrDefault(k, new ArrayList<>());
     if (!lld.isEmpty()) {
       ad.remove(lld.get(lld.size() - 1));
     }
-    List<Socket> td = crd.getOrDefault(cs, new ArrayList<>());
+    List<Socket> td = crd.getOrDefault(k, new ArrayList<>());
     ad.removeAll(td);
-    if (!ad.isEmpty()) {
-      Random r = new Random();
-      int ri = r.nextInt(ad.size());
-      Socket sd = ad.get(ri);
-      td.add(sd);
-      crd.put(cs, td);
-      int dp = gdp(sd);
-      if (dp != -1) {
-        tm(Protocol.LOAD_FROM_TOKEN, dp + " " + df.fs, cs);
-        return;
-      } else {
-        lg("Dstore port not found for " + sd);
-      }
+    CDSReg.DSt sd = pld(ad);
+    if (sd != null) {
+      td.add(sd.s);
+      crd.put(k, td);
+      sld(cs, df, sd, hg ? chd : clo);
+      return;
     }
     tm(Protocol.ERROR_LOAD_TOKEN, cs);
-    lg("No available Dstores to reload " + fn);
-    crd.remove(cs);
+    lg("No available Dstores to " + (hg ? "hedge " : "reload ") + fn);
+    if (!hg) crd.remove(k);
   }
 
-  private static void rd(Socket str) {
-    ds.values().remove(str);
+  // loads are spread by pld, but a Dstore already named earlier in the batch is reused when it holds the file
+  private static void hLB(Socket cs, Tok ps) throws IOException {
+    List<String> fns = bl(ps);
+    if (dr.size() < r) {
+      tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+      lg("Insufficient Dstores to load a batch of " + fns.size());
+      return;
+    }
+    List<Object> a = new ArrayList<>(1 + 4 * fns.size());
+    a.add(fns.size());
+    Set<Socket> ch = new HashSet<>();
+    for (String fn : fns) {
+      a.add(fn);
+      CDSIn df = lf(fn);
+      if (df == null || df.s != CDSIn.CDSMode.STORFIN) {
+        a.add(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+        continue;
+      }
+      if (df.bk != null) {
+        a.add(Protocol.ERROR_LOAD_TOKEN);
+        continue;
+      }
+      List<Socket> ad = fd(df);
+      CDSReg.DSt d = null;
+      for (Socket s : ad) {
+        if (ch.contains(s) && (d = dr.get(s)) != null) break;
+      }
+      if (d == null) d = pld(ad);
+      if (d == null) {
+        a.add(Protocol.ERROR_LOAD_TOKEN);
+        continue;
+      }
+      ch.add(d.s);
+      a.add(Protocol.OK_TOKEN);
+      a.add(d.p);
+      a.add(df.fs);
+    }
+    lg("Loading a batch of " + fns.size() + " files from " + ch.size() + " Dstores");
+    tm(Protocol.LOAD_FROM_BATCH_TOKEN, a, cs);
   }
 
-  private static void hRM(Socket cs, String fn) throws IOException {
-    synchronized (sf) {
-      if (ds.size() < r) {
-        tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
-        lg("Insufficient Dstores to remove " + fn);
-        return;
+  // One replica per block, each picked by pld so the blocks of a file are read from as many Dstores as hold
+  // them. A whole file comes back as its only block, so clients can load everything this way. With all set
+  // every live replica of each block is named instead, least loaded first, for clients that split each block
+  // into ranges and pull them from all replicas at once.
+  private static void hLK(Socket cs, String fn, boolean all) throws IOException {
+    if (dr.size() < r) {
+      tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+      lg("Insufficient Dstores to load " + fn);
+      return;
+    }
+    CDSIn df = lf(fn);
+    if (df == null || df.s != CDSIn.CDSMode.STORFIN) {
+      tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, cs);
+      lg(fn + " not found");
+      return;
+    }
+    CDSIn[] bk = df.bk != null ? df.bk : new CDSIn[] {df};
+    List<Object> a = new ArrayList<>(Arrays.asList(df.sz, bk.length));
+    List<CDSReg.Ld> ls = new ArrayList<>(bk.length);
+    Set<Socket> ch = new HashSet<>();
+    for (CDSIn b : bk) {
+      List<CDSReg.DSt> rs = new ArrayList<>();
+      if (b != null && all) {
+        for (Socket s : fd(b)) {
+          CDSReg.DSt d = dr.get(s);
+          if (d != null) rs.add(d);
+        }
+        rs.sort(Comparator.comparingInt(d -> d.ol.get()));
+      } else if (b != null) {
+        CDSReg.DSt d = pld(fd(b));
+        if (d != null) rs.add(d);
       }
-      CDSIn df = gfbn(fn);
-      if (df == null || df.s != CDSIn.CDSMode.STORFIN) {
-        tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, cs);
-        lg(fn + " not found");
+      if (rs.isEmpty()) {
+        for (CDSReg.Ld ld : ls) dr.endLoad(ld, false);
+        tm(Protocol.ERROR_LOAD_TOKEN, cs);
+        lg("No available Dstores to load a block of " + fn);
         return;
       }
-      synchronized (df) {
-        if (df.s == CDSIn.CDSMode.STORFIN && df.ds.size() - df.bds.size() >= r) {
-          df.s = CDSIn.CDSMode.DEL;
-          lg("Removing " + fn + " from " + df.ds);
-          List<Thread> at = new ArrayList<>();
-          for (Socket ds : df.ds) {
-            if (!df.bds.contains(ds)) {
-              int dp = gdp(ds);
-              if (dp != -1) {
-                try {
-                  tm(Protocol.REMOVE_TOKEN, fn, ds);
-                  lg("REMOVE sent to Dstore " + dp);
-                  Thread act = new Thread(() -> {
-                    try {
-                      BufferedReader r = new BufferedReader(new InputStreamReader(ds.getInputStream()));
-                      String rp = r.readLine();
-                      if (rp != null) {
-                        if (rp.startsWith(Protocol.REMOVE_ACK_TOKEN)) {
-                          synchronized (df) {
-                            df.ds.remove(ds);
-                            if (df.ds.isEmpty()) {
-                              sf.remove(df);
-                            }
-                          }
-                          lg(fn + " removed");
-                        } else if (rp.equals(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)) {
-                          lg(fn + " not found");
-                        } else {
-                          lg("Unexpected response for " + fn + ": " + rp);
-                        }
-                      }
-                    } catch (IOException e) {
-                      lg("Error waiting for REMOVE_ACK from " + ds.getRemoteSocketAddress());
-                      e.printStackTrace();
-                    }
-                  });
-                  at.add(act);
-                  act.start();
-                } catch (IOException e) {
-                  lg("Error sending REMOVE to " + ds.getRemoteSocketAddress());
-                  e.printStackTrace();
-                }
-              } else {
-                lg("Invalid Dstore: " + ds);
+      a.add(b.fn);
+      if (all) {
+        a.add(b.sz);
+        a.add(rs.size());
+      }
+      for (CDSReg.DSt d : rs) {
+        ls.add(dr.beginLoad(d, b));
+        ch.add(d.s);
+        a.add(d.p);
+      }
+      if (!all) a.add(b.sz);
+    }
+    // there is no RELOAD of a block, so each load counts against its Dstore for one timeout
+    for (CDSReg.Ld ld : ls) ld.to = TWheel.schedule(t, () -> dr.endLoad(ld, false));
+    lg("Loading " + fn + " in " + bk.length + " blocks from " + ch.size() + " Dstores");
+    tm(all ? Protocol.LOAD_FROM_REPLICAS_TOKEN : Protocol.LOAD_FROM_BLOCKS_TOKEN, a, cs);
+  }
+
+  private static CDSReg.DSt pld(List<Socket> ad) {
+    List<CDSReg.DSt> c = new ArrayList<>(ad.size());
+    for (Socket s : ad) {
+      CDSReg.DSt d = dr.get(s);
+      if (d != null) c.add(d);
+    }
+    return c.isEmpty() ? null : CPlace.pickLoad(c);
+  }
+
+  private static void sld(Socket cs, CDSIn df, CDSReg.DSt d, Map<Object, CDSReg.Ld> m) throws IOException {
+    CDSReg.Ld ld = dr.beginLoad(d, df);
+    Object k = ck(cs);
+    CDSReg.Ld o = m.put(k, ld);
+    if (o != null) dr.endLoad(o, false);
+    ld.to = TWheel.schedule(10L * t, () -> {
+      if (m.remove(k, ld)) dr.endLoad(ld, false);
+    });
+    tm(Protocol.LOAD_FROM_TOKEN, Arrays.asList(d.p, df.fs), cs);
+  }
+
+  private static void hRM(Socket cs, String fn) throws IOException {
+    if (dr.size() < r) {
+      tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+      lg("Insufficient Dstores to remove " + fn);
+      return;
+    }
+    CDSIn df = lf(fn);
+    if (df == null || df.s != CDSIn.CDSMode.STORFIN) {
+      tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, cs);
+      lg(fn + " not found");
+      return;
+    }
+    List<CDSIn> ps = rmk(df);
+    if (ps != null) {
+      for (CDSIn pf : ps) {
+        lg("Removing " + pf.fn + " from " + pf.ds);
+        for (Socket ds : pf.ds) {
+          if (!pf.bds.contains(ds)) {
+            int dp = dr.port(ds);
+            if (dp != -1) {
+              try {
+                tm(Protocol.REMOVE_TOKEN, Collections.singletonList(pf.fn), ds);
+                lg("REMOVE sent to Dstore " + dp);
+              } catch (IOException e) {
+                lg("Error sending REMOVE to " + ds.getRemoteSocketAddress());
+                e.printStackTrace();
               }
+            } else {
+              lg("Invalid Dstore: " + ds);
             }
           }
-          srt(df, cs);
-          tm(Protocol.REMOVE_COMPLETE_TOKEN, fn, cs);
-        } else {
-          tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, cs);
-          lg(fn + " not found or insufficient available Dstores");
         }
+        srt(pf, cs);
       }
+      if (df.bk != null) hrc(df);
+      tm(Protocol.REMOVE_COMPLETE_TOKEN, Collections.singletonList(fn), cs);
+    } else {
+      tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, cs);
+      lg(fn + " not found or insufficient available Dstores");
     }
   }
 
-  private static void srt(CDSIn df, Socket cs) {
-    new Thread(() -> {
+  // one REMOVE_BATCH per Dstore instead of one REMOVE per file and replica
+  private static void hRMB(Socket cs, Tok ps) throws IOException {
+    List<String> fns = bl(ps);
+    if (dr.size() < r) {
+      tm(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, cs);
+      lg("Insufficient Dstores to remove a batch of " + fns.size());
+      return;
+    }
+    List<Object> a = new ArrayList<>(1 + 2 * fns.size());
+    a.add(fns.size());
+    Map<Socket, List<String>> bd = new HashMap<>();
+    for (String fn : fns) {
+      CDSIn df = lf(fn);
+      List<CDSIn> rl = df == null ? null : rmk(df);
+      a.add(fn);
+      a.add(rl != null ? Protocol.OK_TOKEN : Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+      if (rl == null) continue;
+      for (CDSIn pf : rl) {
+        for (Socket ds : fd(pf)) bd.computeIfAbsent(ds, k -> new ArrayList<>()).add(pf.fn);
+        srt(pf, cs);
+      }
+      if (df.bk != null) hrc(df);
+    }
+    for (Map.Entry<Socket, List<String>> e : bd.entrySet()) {
       try {
-        Thread.sleep(t);
-        synchronized (df.sl2) {
-          if (df.s == CDSIn.CDSMode.DEL) {
-            lg("Timeout removing " + df.fn);
-          }
-        }
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+        List<Object> ra = new ArrayList<>(1 + e.getValue().size());
+        ra.add(e.getValue().size());
+        ra.addAll(e.getValue());
+        tm(Protocol.REMOVE_BATCH_TOKEN, ra, e.getKey());
+      } catch (IOException ex) {
+        lg("Error sending REMOVE_BATCH to " + e.getKey().getRemoteSocketAddress());
+        ex.printStackTrace();
       }
-    }).start();
+    }
+    lg("Removing a batch of " + fns.size() + " files from " + bd.size() + " Dstores");
+    tm(Protocol.REMOVE_COMPLETE_BATCH_TOKEN, a, cs);
   }
 
+  private static void hRA(Socket d, String fn) {
+    CDSIn df = sf.get(fn);
+    if (df == null) return;
+    synchronized (df.sl2) {
+      int dp = dr.port(d);
+      df.ds.remove(d);
+      df.rp.remove(dp);
+      dr.release(d, df);
+      wal.rs(df);
+      if (df.ds.isEmpty() && df.rp.isEmpty() && sf.cas(df, CDSIn.CDSMode.DEL, CDSIn.CDSMode.DELFIN)) {
+        if (df.to != null) df.to.cancel();
+        sf.remove(df);
+        wal.x(fn);
+      }
+    }
+    lg(fn + " removed");
+    if (df.hd != null) hrc(df.hd);
+  }
 
-  private static List<Integer> gds() {
-    return new ArrayList<>(ds.keySet());
+  // Marks df for removal, a striped file with all of its blocks, and returns the entries whose replicas are
+  // sent REMOVE. Null when df is not stored or some part of it has fewer than R available replicas.
+  private static List<CDSIn> rmk(CDSIn df) {
+    List<CDSIn> ps = new ArrayList<>();
+    if (df.bk == null) ps.add(df);
+    else for (CDSIn b : df.bk) {
+      if (b != null) ps.add(b);
+    }
+    synchronized (df.sl2) {
+      for (CDSIn pf : ps) {
+        if (pf.ds.size() - pf.bds.size() < r) return null;
+      }
+      if (!sf.cas(df, CDSIn.CDSMode.STORFIN, CDSIn.CDSMode.DEL)) return null;
+      wal.dl(df.fn);
+      for (CDSIn b : ps) {
+        if (b != df && sf.cas(b, CDSIn.CDSMode.STORFIN, CDSIn.CDSMode.DEL)) wal.dl(b.fn);
+      }
+    }
+    return ps;
   }
 
+  // a striped file is gone once the last of its blocks is
+  private static void hrc(CDSIn hf) {
+    synchronized (hf.sl2) {
+      for (CDSIn b : hf.bk) {
+        if (b != null && sf.get(b.fn) == b) return;
+      }
+      if (!sf.cas(hf, CDSIn.CDSMode.DEL, CDSIn.CDSMode.DELFIN)) return;
+      if (hf.to != null) hf.to.cancel();
+      sf.remove(hf);
+      wal.x(hf.fn);
+    }
+    lg(hf.fn + " removed");
+  }
+
+  private static void srt(CDSIn df, Socket cs) {
+    df.to = TWheel.schedule(t, () -> {
+      synchronized (df.sl2) {
+        if (df.s == CDSIn.CDSMode.DEL) {
+          lg("Timeout removing " + df.fn);
+        }
+      }
+    });
+  }
+
+
+  // replies to a tagged request carry its tag
   private static void tm(String c, Object d, Socket s) throws IOException {
-    PrintWriter sw = new PrintWriter(s.getOutputStream());
-    sw.print(c);
-    if (d != null) {
-      sw.print(" ");
-      sw.print(d);
+    tm(c, d, s, rid(s));
+  }
+
+  private static void tm(String c, Object d, Socket s, String id) throws IOException {
+    if (nio != null && s.getChannel() != null) {
+      if (id != null) c = Protocol.TAG_PREFIX + id + " " + c;
+      nio.send(s.getChannel(), d == null ? c : c + " " + Wire.text(d));
+      cl.messageSent(s, c + " " + Wire.text(d));
+      return;
     }
-    sw.println();
-    sw.flush();
-    cl.messageSent(s, c + " " + d);
+    // tagged replies to one socket can come from several threads at once
+    synchronized (s) {
+      if (bin.contains(s)) Wire.write(Wire.out(s), c, id == null ? 0 : Long.parseLong(id), d);
+      else Wire.line(Wire.out(s), c, id, d);
+    }
+    if (cl.on()) cl.messageSent(s, (id == null ? "" : Protocol.TAG_PREFIX + id + " ") + c + " " + Wire.text(d));
   }
 
   private static void tm(String c, Socket s) throws IOException {
     tm(c, null, s);
   }
 
-  private static Set<String> gfn(CDSIn.CDSMode... ss) {
-    return sf.stream()
-            .filter(f -> Arrays.asList(ss).contains(f.s))
-            .map(f -> f.fn)
-            .collect(Collectors.toSet());
-  }
-
-  private static CDSIn gfbn(String fn) {
-    return sf.stream()
-            .filter(f -> f.fn.equals(fn))
-            .findFirst()
-            .orElse(null);
+  private static List<String> bl(Tok ps) {
+    int n = ps.nextInt();
+    List<String> l = new ArrayList<>(Math.min(n, 1024));
+    for (int i = 0; i < n; i++) l.add(ps.next());
+    return l;
   }
 
   private static String cts(Collection<?> c) {
@@ -0,0 +1,88 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Size-bounded LRU cache of whole files in direct buffers, so a file that is loaded over and over is sent
+// from memory rather than read from the filesystem each time. Files over mf bytes are never cached. A miss
+// reads the file once and admits it; drop must follow anything that renames over or deletes a file, and a
+// generation count stops a miss that raced with one from admitting what it read before the change.
+public class DSCache {
+  private final long cap, mf;
+  private final LinkedHashMap<String, ByteBuffer> m = new LinkedHashMap<>(16, 0.75f, true);
+  private long sz, gn;
+  private final AtomicLong ht = new AtomicLong(), ms = new AtomicLong(), ev = new AtomicLong(), sv = new AtomicLong();
+  private long ls = -1;
+
+  DSCache(long cap, long mf) {
+    this.cap = cap;
+    this.mf = Math.min(mf, Math.min(cap, Integer.MAX_VALUE));
+  }
+
+  boolean on() {
+    return cap > 0;
+  }
+
+  // the contents of f as a buffer of its own, from the cache or read now; null when f is too large to cache
+  ByteBuffer get(File f) throws IOException {
+    if (f.length() > mf) return null;
+    String fn = f.getName();
+    long g;
+    synchronized (this) {
+      ByteBuffer b = m.get(fn);
+      if (b != null) {
+        ht.incrementAndGet();
+        return b.duplicate();
+      }
+      g = gn;
+    }
+    ms.incrementAndGet();
+    ByteBuffer b;
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      long n = fc.size();
+      if (n > mf) return null;
+      b = ByteBuffer.allocateDirect((int) n);
+      while (b.hasRemaining() && fc.read(b) >= 0) ;
+      b.flip();
+    }
+    synchronized (this) {
+      if (g == gn && !m.containsKey(fn)) {
+        m.put(fn, b);
+        sz += b.capacity();
+        for (Iterator<ByteBuffer> it = m.values().iterator(); sz > cap && it.hasNext(); ) {
+          sz -= it.next().capacity();
+          it.remove();
+          ev.incrementAndGet();
+        }
+      }
+    }
+    return b.duplicate();
+  }
+
+  synchronized void drop(String fn) {
+    gn++;
+    ByteBuffer b = m.remove(fn);
+    if (b != null) sz -= b.capacity();
+  }
+
+  void served(long n) {
+    sv.addAndGet(n);
+  }
+
+  // true once per change in the counters, so an idle Dstore does not keep reporting the same numbers
+  synchronized boolean moved() {
+    long n = ht.get() + ms.get();
+    if (n == ls) return false;
+    ls = n;
+    return true;
+  }
+
+  @Override
+  public synchronized String toString() {
+    long h = ht.get(), n = h + ms.get();
+    return "hits=" + h + "/" + n + " (" + (n == 0 ? 0 : h * 100 / n) + "%), evictions=" + ev.get() + ", served=" + sv.get()
+        + " bytes, holding " + m.size() + " files in " + sz + "/" + cap + " bytes";
+  }
+}
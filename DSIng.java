@@ -0,0 +1,96 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Streams uploads to disk through a fixed pool of direct buffers, so an upload holds one buffer
+// whatever its size and the pool bounds ingest memory overall. A file is written to a temp file
+// sized up front, must deliver exactly its declared byte count, and only then is renamed over the target.
+// When the upload heads a replication chain every chunk is also passed on to the next Dstore as it arrives.
+public class DSIng {
+  private final File d, tp;
+  private final BlockingQueue<ByteBuffer> bp;
+  private final AtomicLong sq = new AtomicLong();
+
+  DSIng(File d, int n, int sz) throws IOException {
+    this.d = d;
+    tp = new File(d, ".incoming");
+    if (!tp.isDirectory() && !tp.mkdirs()) throw new IOException("Failed to create folder: " + tp.getAbsolutePath());
+    // whatever is left here was cut off by a crash
+    File[] lf = tp.listFiles();
+    if (lf != null) for (File f : lf) f.delete();
+    bp = new ArrayBlockingQueue<>(n);
+    for (int i = 0; i < n; i++) bp.add(ByteBuffer.allocateDirect(sz));
+  }
+
+  void store(String fn, long n, Socket s, long to) throws IOException {
+    store(fn, n, s, to, null);
+  }
+
+  // reads exactly n bytes of fn from s, forwarding them to fw if given; on failure the target is
+  // left as it was. A read that stalls for to ms closes the socket, since channel reads do not honour SO_TIMEOUT,
+  // and a forward that stalls as long closes fw and drops the rest of the chain
+  void store(String fn, long n, Socket s, long to, WritableByteChannel fw) throws IOException {
+    if (d.getUsableSpace() < n) throw new IOException("No space for " + n + " bytes of " + fn);
+    ReadableByteChannel rc = s.getChannel() != null ? s.getChannel() : Channels.newChannel(s.getInputStream());
+    File tf = new File(tp, Long.toString(sq.incrementAndGet()));
+    ByteBuffer b;
+    try {
+      b = bp.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for an ingest buffer");
+    }
+    boolean ok = false;
+    try {
+      try (RandomAccessFile rf = new RandomAccessFile(tf, "rw")) {
+        rf.setLength(n);
+        FileChannel fc = rf.getChannel();
+        for (long p = 0; p < n; ) {
+          b.clear().limit((int) Math.min(b.capacity(), n - p));
+          TWheel.TO w = to > 0 ? TWheel.schedule(to, () -> cl(s)) : null;
+          int k;
+          try {
+            k = rc.read(b);
+          } finally {
+            if (w != null) w.cancel();
+          }
+          if (k < 0) throw new EOFException((n - p) + " bytes short of " + fn);
+          b.flip();
+          if (fw != null) {
+            WritableByteChannel c = fw;
+            TWheel.TO fwd = to > 0 ? TWheel.schedule(to, () -> cl(c)) : null;
+            try {
+              ByteBuffer v = b.duplicate();
+              while (v.hasRemaining()) fw.write(v);
+            } catch (IOException e) {
+              // the rest of the chain times out at the Controller, this replica still completes
+              fw = null;
+            } finally {
+              if (fwd != null) fwd.cancel();
+            }
+          }
+          while (b.hasRemaining()) p += fc.write(b, p);
+        }
+      }
+      Files.move(tf.toPath(), new File(d, fn).toPath(), StandardCopyOption.ATOMIC_MOVE);
+      ok = true;
+    } finally {
+      bp.add(b);
+      if (!ok) tf.delete();
+    }
+  }
+
+  private static void cl(Closeable s) {
+    try {
+      s.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Bounded LRU cache of read-only mappings, so repeated loads of a file skip the open and close and are
+// written to the socket straight from the mapping. Each mapping is counted once for the cache and once per
+// load using it, and is unmapped as soon as the count drops to zero, so drop can release a removed or
+// overwritten file at once without pulling a mapping from under a load still sending it.
+public class DSMap {
+  static class M {
+    final MappedByteBuffer b;
+    private int rc = 1;
+
+    private M(MappedByteBuffer b) {
+      this.b = b;
+    }
+  }
+
+  private static final Object U;
+  private static final Method IC;
+
+  static {
+    // Unsafe.invokeCleaner is the only way to unmap before the buffer is collected
+    Object u = null;
+    Method ic = null;
+    try {
+      Class<?> c = Class.forName("sun.misc.Unsafe");
+      java.lang.reflect.Field f = c.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+      u = f.get(null);
+      ic = c.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      System.out.println("Mappings will be released by the collector: " + e);
+    }
+    U = u;
+    IC = ic;
+  }
+
+  private final int mx;
+  private final LinkedHashMap<String, M> m = new LinkedHashMap<>(16, 0.75f, true);
+  private long gn;
+
+  DSMap(int mx) {
+    this.mx = mx;
+  }
+
+  // a mapping of f the caller must hand back to release; null when f is too large to map in one buffer
+  M get(File f) throws IOException {
+    String fn = f.getName();
+    long g;
+    synchronized (this) {
+      M e = m.get(fn);
+      if (e != null) {
+        e.rc++;
+        return e;
+      }
+      g = gn;
+    }
+    M e;
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      long n = fc.size();
+      if (n > Integer.MAX_VALUE) return null;
+      e = new M(fc.map(FileChannel.MapMode.READ_ONLY, 0, n));
+    }
+    synchronized (this) {
+      if (g == gn && !m.containsKey(fn)) {
+        e.rc++;
+        m.put(fn, e);
+        for (Iterator<M> it = m.values().iterator(); m.size() > mx && it.hasNext(); ) {
+          M o = it.next();
+          it.remove();
+          release(o);
+        }
+      }
+    }
+    return e;
+  }
+
+  synchronized void release(M e) {
+    if (--e.rc == 0) um(e.b);
+  }
+
+  synchronized void drop(String fn) {
+    gn++;
+    M e = m.remove(fn);
+    if (e != null) release(e);
+  }
+
+  private static void um(MappedByteBuffer b) {
+    if (IC == null) return;
+    try {
+      IC.invoke(U, b);
+    } catch (ReflectiveOperationException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -1,13 +1,38 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Dstore {
   private static int p,cp,t;
   private static File ff;
   private static DSLogger dl;
-  private static ServerSocket ds;
+  private static DSIng ig;
+  private static DSCache dc;
+  private static DSMap mm;
+  private static ServerSocketChannel ds;
   private static Socket cs;
+  private static final Set<Socket> bin = ConcurrentHashMap.newKeySet();
+  private static final Wire.H[] hs = new Wire.H[Wire.ops()];
+
+  static {
+    hn(Protocol.STORE_TOKEN, (s, ps) -> hS(s, ps.next(), ps.nextLong(), ps));
+    hn(Protocol.LOAD_DATA_TOKEN, (s, ps) -> hL(s, ps.next(), ps.hasNext() ? ps.nextLong() : 0, ps.hasNext() ? ps.nextLong() : Long.MAX_VALUE));
+    hn(Protocol.REMOVE_TOKEN, (s, ps) -> hR(s, ps.next()));
+    hn(Protocol.ACK_TOKEN, (s, ps) -> ap(s));
+    hn(Protocol.STORE_BATCH_TOKEN, Dstore::hSB);
+    hn(Protocol.LOAD_DATA_BATCH_TOKEN, Dstore::hLB);
+    hn(Protocol.REMOVE_BATCH_TOKEN, Dstore::hRB);
+    hn(Protocol.PROTOCOL_TOKEN, (s, ps) -> tm(Protocol.PROTOCOL_TOKEN, Protocol.TEXT_TOKEN, s));
+  }
+
+  private static void hn(String c, Wire.H h) {
+    hs[Wire.op(c)] = h;
+  }
 
   public static void main(String[] a) throws IOException {
     if (a.length < 4) {
@@ -24,22 +49,29 @@ public class Dstore {
       throw e;
     }
     try {
-      DSLogger.init(Logger.LMode.CONSOLEFILE, p);
+      DSLogger.init(Logger.LMode.valueOf(System.getProperty("dfs.log", "CONSOLEFILE")), p);
       dl = DSLogger.getInstance();
       System.out.println("Dstore Logger initialized");
-      lg("Dstore: port=" + p + ", cport=" + cp + ", timeout=" + t + "ms, folder=" + ff);
+      lg("Dstore: port=" + p + ", cport=" + cp + ", timeout=" + t + "ms, folder=" + ff + ", exec=" + Exec.getMode());
     } catch (IOException e) {
       System.out.println("Failed to initialize Dstore Logger");
       throw e;
     }
     try {
       if (!ff.exists()) if (!ff.mkdir()) throw new IOException("Failed to create folder: " + ff.getAbsolutePath());
+      ig = new DSIng(ff, Integer.getInteger("dfs.ingest.buffers", 32), Integer.getInteger("dfs.ingest.bufferSize", 64 * 1024));
+      // mmap mode serves files from their mappings, so it turns the read cache off, which would otherwise
+      // answer first for exactly the small, hot files the mappings are meant for
+      boolean mp = "mmap".equals(System.getProperty("dfs.read"));
+      dc = new DSCache(mp ? 0 : Long.getLong("dfs.cache.size", 64L << 20), Long.getLong("dfs.cache.maxFile", 4L << 20));
+      if (mp) mm = new DSMap(Integer.getInteger("dfs.mmap.handles", 256));
     } catch (IOException e) {
       lg("Folder open error");
       throw e;
     }
     try {
       cs = new Socket(InetAddress.getLoopbackAddress(), cp);
+      if ("binary".equals(System.getProperty("dfs.wire"))) ng();
       j();
       lg("Join success");
     } catch (IOException e) {
@@ -47,9 +79,12 @@ public class Dstore {
       e.printStackTrace();
       throw e;
     }
-    new Thread(() -> hr(cs)).start();
+    Exec.serve(() -> hr(cs));
+    if (dc.on()) cr();
     try {
-      ds = new ServerSocket(p);
+      // accepted through a channel so loads can be served with transferTo
+      ds = ServerSocketChannel.open();
+      ds.bind(new InetSocketAddress(p));
       while (true) l();
     } catch (IOException e) {
       lg("Port bind error=" + p);
@@ -60,25 +95,61 @@ public class Dstore {
 
   private static void l() {
     try {
-      final Socket rs = ds.accept();
-      new Thread(() -> hr(rs)).start();
+      final Socket rs = ds.accept().socket();
+      Exec.serve(() -> hr(rs));
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  // logs the cache counters every 10s while they move
+  private static void cr() {
+    TWheel.schedule(10000, () -> {
+      if (dc.moved()) lg("Cache: " + dc);
+      cr();
+    });
+  }
+
+  // asks the Controller for binary framing; one that declines or does not answer keeps text
+  private static void ng() throws IOException {
+    tm(Protocol.PROTOCOL_TOKEN, Protocol.BINARY_TOKEN, cs);
+    cs.setSoTimeout(t);
+    try {
+      Tok tk = new Tok();
+      if (tk.line(cs.getInputStream())) {
+        dl.messageReceived(cs, tk.toString());
+        if (tk.hs()) bin.add(cs);
+      }
+    } catch (SocketTimeoutException e) {
+      lg("No answer to binary handshake");
+    } finally {
+      cs.setSoTimeout(0);
+    }
+    lg("Controller wire protocol: " + (bin.contains(cs) ? "binary" : "text"));
+  }
+
   private static void j() throws IOException {
-    tm(Protocol.JOIN_TOKEN, p, cs);
+    tm(Protocol.JOIN_TOKEN, Arrays.asList(p, ff.getUsableSpace()), cs);
   }
 
   private static void hcm(Socket rs) throws IOException {
-    BufferedReader cr = new BufferedReader(new InputStreamReader(rs.getInputStream()));
-    String l;
-    while ((l = cr.readLine()) != null) {
-      dl.messageReceived(rs, l);
-      Scanner s = new Scanner(l);
-      String c = s.next();
-      hc(c, s, rs);
+    InputStream in = new BufferedInputStream(rs.getInputStream());
+    Tok tk = new Tok();
+    if (!bin.contains(rs)) {
+      while (tk.line(in)) {
+        if (dl.on()) dl.messageReceived(rs, tk.toString());
+        if (tk.hs()) {
+          tm(Protocol.PROTOCOL_TOKEN, Protocol.BINARY_TOKEN, rs);
+          bin.add(rs);
+          break;
+        }
+        if (tk.cmd()) hc(tk, rs);
+      }
+      if (!bin.contains(rs)) return;
+    }
+    while (Wire.read(in, tk)) {
+      if (dl.on()) dl.messageReceived(rs, tk.toString());
+      hc(tk, rs);
     }
   }
 
@@ -87,23 +158,24 @@ public class Dstore {
       hcm(rs);
     } catch (IOException e) {
       e.printStackTrace();
+      try {
+        rs.close();
+      } catch (IOException x) {
+        x.printStackTrace();
+      }
     } finally {
+      bin.remove(rs);
+      Wire.drop(rs);
       lg("Closed: " + rs.getRemoteSocketAddress());
     }
   }
 
-  private static void hc(String c, Scanner ps, Socket rs) throws IOException {
+  private static void hc(Tok ps, Socket rs) throws IOException {
+    Wire.H h = ps.op < 0 ? null : hs[ps.op];
+    if (h == null) return;
     rs.setSoTimeout(t);
     try {
-      if (c.equals(Protocol.STORE_TOKEN)) {
-        hS(rs, ps.next());
-      } else if (c.equals(Protocol.LOAD_DATA_TOKEN)) {
-        hL(rs, ps.next());
-      } else if (c.equals(Protocol.REMOVE_TOKEN)) {
-        hR(rs, ps.next());
-      } else if (c.equals(Protocol.ACK_TOKEN)) {
-        ap(rs);
-      }
+      h.h(rs, ps);
     } catch (NoSuchElementException e) {
       lg("Invalid request");
       e.printStackTrace();
@@ -112,28 +184,173 @@ public class Dstore {
     }
   }
 
-  private static void hS(Socket cs, String fn) throws IOException {
-    tm(Protocol.ACK_TOKEN, cs);
-    String fp = ff.getPath() + File.separator + fn;
-    try (FileOutputStream os = new FileOutputStream(fp)) {
-      lg("Storing: " + fn);
-      cs.getInputStream().transferTo(os);
+  // STORE fn size [port...]: any ports are the rest of a replication chain, fed from this upload as it
+  // arrives, so the client sends the file once; each Dstore in the chain acks to the Controller itself
+  private static void hS(Socket cs, String fn, long fs, Tok ps) throws IOException {
+    SocketChannel nx = ps.hasNext() ? nh(fn, fs, ps) : null;
+    try {
+      tm(Protocol.ACK_TOKEN, cs);
+      lg("Storing: " + fn + (nx == null ? "" : " (chained)"));
+      ig.store(fn, fs, cs, t, nx);
+      iv(fn);
       lg("Stored: " + fn);
+    } finally {
+      if (nx != null) {
+        Wire.drop(nx.socket());
+        nx.close();
+      }
+    }
+    tm(Protocol.STORE_ACK_TOKEN, Collections.singletonList(fn), Dstore.cs);
+  }
+
+  // opens the next hop and hands it the rest of the chain; null when it cannot be reached, which ends
+  // the chain here and leaves the missing replicas to time out at the Controller
+  private static SocketChannel nh(String fn, long fs, Tok ps) {
+    int np = ps.nextInt();
+    List<Object> a = new ArrayList<>(Arrays.asList(fn, fs));
+    while (ps.hasNext()) a.add(ps.next());
+    SocketChannel nx = null;
+    try {
+      nx = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), np));
+      Socket s = nx.socket();
+      s.setSoTimeout(t);
+      tm(Protocol.STORE_TOKEN, a, s);
+      Tok tk = new Tok();
+      if (!tk.line(s.getInputStream()) || tk.op != Wire.op(Protocol.ACK_TOKEN)) throw new IOException("no ACK");
+      dl.messageReceived(s, tk.toString());
+      return nx;
+    } catch (IOException e) {
+      lg("Chain to " + np + " broken: " + e.getMessage());
+      if (nx != null) {
+        Wire.drop(nx.socket());
+        try {
+          nx.close();
+        } catch (IOException x) {
+          x.printStackTrace();
+        }
+      }
+      return null;
+    }
+  }
+
+  // files follow the ACK back to back, delimited only by the sizes in the request
+  private static void hSB(Socket cs, Tok ps) throws IOException {
+    int n = ps.nextInt();
+    String[] fn = new String[n];
+    long[] fs = new long[n];
+    for (int i = 0; i < n; i++) {
+      fn[i] = ps.next();
+      fs[i] = ps.nextLong();
+    }
+    tm(Protocol.ACK_TOKEN, cs);
+    List<String> sd = new ArrayList<>(Math.min(n, 1024));
+    try {
+      for (int i = 0; i < n; i++) {
+        ig.store(fn[i], fs[i], cs, t);
+        iv(fn[i]);
+        sd.add(fn[i]);
+      }
+      lg("Stored a batch of " + n);
+    } finally {
+      if (!sd.isEmpty()) {
+        sd.add(0, Integer.toString(sd.size()));
+        tm(Protocol.STORE_ACK_BATCH_TOKEN, sd, Dstore.cs);
+      }
+    }
+  }
+
+  // replies with each file's size, -1 when missing, then the contents of the files that exist in order
+  private static void hLB(Socket cs, Tok ps) throws IOException {
+    int n = ps.nextInt();
+    File[] fs = new File[n];
+    long[] ln = new long[n];
+    List<Object> a = new ArrayList<>(1 + 2 * n);
+    a.add(n);
+    for (int i = 0; i < n; i++) {
+      String fn = ps.next();
+      File f = new File(ff.getPath() + File.separator + fn);
+      fs[i] = f.isFile() ? f : null;
+      ln[i] = fs[i] == null ? -1 : f.length();
+      a.add(fn);
+      a.add(ln[i]);
+    }
+    tm(Protocol.LOAD_DATA_BATCH_TOKEN, a, cs);
+    for (int i = 0; i < n; i++) {
+      if (fs[i] != null) sf(fs[i], 0, ln[i], cs);
+    }
+    lg("Sent a batch of " + n);
+  }
+
+  private static void hRB(Socket cs, Tok ps) throws IOException {
+    int n = ps.nextInt();
+    List<String> rm = new ArrayList<>(Math.min(n, 1024));
+    for (int i = 0; i < n; i++) {
+      String fn = ps.next();
+      File fd = new File(ff.getPath() + File.separator + fn);
+      iv(fn);
+      // a file that is already gone counts as removed
+      if (fd.delete() || !fd.exists()) rm.add(fn);
+      else lg("Remove failed: " + fn);
+    }
+    lg("Removed a batch of " + rm.size() + "/" + n);
+    rm.add(0, Integer.toString(rm.size()));
+    tm(Protocol.REMOVE_ACK_BATCH_TOKEN, rm, cs);
+  }
+
+  // a store renamed over fn or a remove deleted it, so nothing cached of the old file may be served again
+  private static void iv(String fn) {
+    dc.drop(fn);
+    if (mm != null) mm.drop(fn);
+  }
+
+  // n bytes of f from offset o: from the cache when it holds f (never in mmap mode, which turns it off),
+  // else from a mapping in mmap mode, else straight from the page cache to the socket where the OS supports it
+  private static void sf(File f, long o, long n, Socket s) throws IOException {
+    WritableByteChannel wc = s.getChannel() != null ? s.getChannel() : Channels.newChannel(s.getOutputStream());
+    ByteBuffer b = dc.on() ? dc.get(f) : null;
+    if (b != null) {
+      if (o + n > b.limit()) throw new EOFException((o + n - b.limit()) + " bytes short");
+      b.limit((int) (o + n)).position((int) o);
+      while (b.hasRemaining()) wc.write(b);
+      dc.served(n);
+      return;
+    }
+    DSMap.M mp = mm != null ? mm.get(f) : null;
+    if (mp != null) {
+      try {
+        b = mp.b.duplicate();
+        if (o + n > b.limit()) throw new EOFException((o + n - b.limit()) + " bytes short");
+        b.limit((int) (o + n)).position((int) o);
+        while (b.hasRemaining()) wc.write(b);
+      } finally {
+        mm.release(mp);
+      }
+      return;
+    }
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      for (long p = o, e = o + n; p < e; ) {
+        long k = fc.transferTo(p, e - p, wc);
+        if (k == 0 && p >= fc.size()) throw new EOFException((e - p) + " bytes short");
+        p += k;
+      }
     }
-    tm(Protocol.STORE_ACK_TOKEN, fn, Dstore.cs);
   }
 
   private static void ap(Socket ps) throws IOException {
     tm(Protocol.ACK_TOKEN, ps);
   }
 
-  private static void hL(Socket cs, String fn) throws IOException {
-    String fp = ff.getPath() + File.separator + fn;
-    try (FileInputStream is = new FileInputStream(fp)) {
-      lg("Sending: " + fn);
-      is.transferTo(cs.getOutputStream());
+  // the range [o, o + n) clipped to the file, so a client can resume or read a part; the whole file by default
+  private static void hL(Socket cs, String fn, long o, long n) throws IOException {
+    if (o < 0 || n < 0) throw new InputMismatchException(o + " " + n);
+    File f = new File(ff.getPath() + File.separator + fn);
+    try {
+      if (!f.isFile()) throw new FileNotFoundException(f.getPath());
+      long ln = f.length(), st = Math.min(o, ln);
+      lg("Sending: " + fn + (o == 0 && n >= ln ? "" : " [" + st + ", " + (st + Math.min(n, ln - st)) + ")"));
+      sf(f, st, Math.min(n, ln - st), cs);
       lg("Sent: " + fn);
-    } catch (FileNotFoundException e) {
+    } catch (FileNotFoundException | NoSuchFileException e) {
       tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, cs);
       cs.close();
     } finally {
@@ -143,13 +360,14 @@ public class Dstore {
 
   private static void hR(Socket cs, String fn) throws IOException {
     File fd = new File(ff.getPath() + File.separator + fn);
+    iv(fn);
     if (fd.exists()) {
       if (fd.delete()) {
         lg("Removed: " + fn);
-        tm(Protocol.REMOVE_ACK_TOKEN, fn, cs);
+        tm(Protocol.REMOVE_ACK_TOKEN, Collections.singletonList(fn), cs);
       } else {
         lg("Remove failed: " + fn);
-        tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, fn, cs);
+        tm(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, Collections.singletonList(fn), cs);
       }
     } else {
       lg(fn + " not found");
@@ -158,15 +376,12 @@ public class Dstore {
   }
 
   private static void tm(String c, Object d, Socket s) throws IOException {
-    PrintWriter sw = new PrintWriter(s.getOutputStream());
-    sw.print(c);
-    if (d != null) {
-      sw.print(" ");
-      sw.print(d);
-    }
-    sw.println();
-    sw.flush();
-    dl.messageSent(s, c + " " + d);
+    // the Controller connection is written by the listener and by store handlers alike
+    synchronized (s) {
+      if (bin.contains(s)) Wire.write(Wire.out(s), c, 0, d);
+      else Wire.line(Wire.out(s), c, null, d);
+    }
+    if (dl.on()) dl.messageSent(s, c + " " + Wire.text(d));
   }
 
   private static void tm(String c, Socket s) throws IOException {
@@ -0,0 +1,56 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Exec {
+  public enum EMode {
+    PLATFORM,
+    BOUNDED,
+    VIRTUAL
+  }
+
+  private static final EMode m = gm();
+  private static final ExecutorService es = ce(m);
+  // connection loops block on their socket while it is open, so a bounded pool never runs them: as many
+  // idle connections as threads would leave the tasks queued behind them waiting forever
+  private static final ExecutorService cs = m == EMode.BOUNDED ? Executors.newCachedThreadPool() : es;
+
+  // a task that runs to completion: a tagged request, a snapshot
+  public static void run(Runnable r) {
+    es.execute(r);
+  }
+
+  // a loop serving one connection until it closes
+  public static void serve(Runnable r) {
+    cs.execute(r);
+  }
+
+  public static EMode getMode() {
+    return m;
+  }
+
+  private static EMode gm() {
+    String v = System.getProperty("dfs.exec", "platform");
+    try {
+      return EMode.valueOf(v.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      System.out.println("Unknown executor mode " + v + ", using platform threads");
+      return EMode.PLATFORM;
+    }
+  }
+
+  private static ExecutorService ce(EMode m) {
+    if (m == EMode.BOUNDED) {
+      int n = Integer.getInteger("dfs.exec.threads", 256);
+      return Executors.newFixedThreadPool(n);
+    }
+    if (m == EMode.VIRTUAL) {
+      // looked up reflectively so the sources still build on JDKs without virtual threads
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        System.out.println("Virtual threads unavailable on this JDK, using platform threads");
+      }
+    }
+    return Executors.newCachedThreadPool();
+  }
+}
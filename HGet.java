@@ -0,0 +1,195 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Loads a file as the stock client does, LOAD and then LOAD_DATA, but hedges against a slow replica. When no
+// bytes have arrived within the hedge delay, LOAD_HEDGE asks the Controller for another replica and the two are
+// raced: the first to send bytes writes the file and the other is closed. The delay is a percentile of recent
+// first-byte latencies, so only the slowest few loads are duplicated. A load that fails falls back to RELOAD.
+public class HGet {
+  // percentile of first-byte latency to hedge at, 100 or more turns hedging off; fixed delay in ms until there are enough samples
+  private static final double PC = Double.parseDouble(System.getProperty("dfs.hedge.pct", "95"));
+  private static final long DF = Long.getLong("dfs.hedge.after", 50);
+  private static final long[] lt = new long[256];
+  private static int ln, lp;
+
+  // one LOAD_DATA racing for the file; the first attempt to read any bytes becomes the winner
+  private static class At extends Thread {
+    final Rc rc;
+    final int p;
+    final long st = System.nanoTime();
+    long fb;
+    volatile Socket s;
+    volatile boolean dn, ok;
+    IOException ex;
+
+    At(Rc rc, int p) {
+      super("HGet-" + p);
+      this.rc = rc;
+      this.p = p;
+    }
+
+    @Override
+    public void run() {
+      try (Socket s = new Socket(InetAddress.getLoopbackAddress(), p)) {
+        this.s = s;
+        s.setSoTimeout(rc.to);
+        OutputStream o = s.getOutputStream();
+        o.write((Protocol.LOAD_DATA_TOKEN + " " + rc.fn + "\n").getBytes(StandardCharsets.UTF_8));
+        o.flush();
+        InputStream in = s.getInputStream();
+        byte[] b = new byte[64 << 10];
+        int k = rc.sz == 0 ? 0 : in.read(b);
+        if (k < 0) throw new EOFException(rc.sz + " bytes short of " + rc.fn);
+        fb = System.nanoTime() - st;
+        if (!rc.win(this)) return;
+        try (OutputStream fo = new FileOutputStream(rc.f)) {
+          for (long n = 0; ; k = in.read(b)) {
+            if (k < 0) throw new EOFException((rc.sz - n) + " bytes short of " + rc.fn);
+            fo.write(b, 0, k);
+            if ((n += k) >= rc.sz) break;
+          }
+        }
+        ok = true;
+      } catch (IOException e) {
+        ex = e;
+      } finally {
+        synchronized (rc) {
+          dn = true;
+          rc.notifyAll();
+        }
+      }
+    }
+  }
+
+  // the attempts racing for one load: the replica named by LOAD_FROM and the hedge, if any
+  private static class Rc {
+    final String fn;
+    final File f;
+    final long sz;
+    final int to;
+    final List<At> as = new ArrayList<>();
+    At w;
+
+    Rc(String fn, File f, long sz, int to) {
+      this.fn = fn;
+      this.f = f;
+      this.sz = sz;
+      this.to = to;
+    }
+
+    synchronized At start(int p) {
+      At a = new At(this, p);
+      as.add(a);
+      a.start();
+      return a;
+    }
+
+    // claims the file for a and closes the others
+    synchronized boolean win(At a) {
+      if (w != null) return false;
+      w = a;
+      for (At o : as) {
+        if (o != a && o.s != null) cl(o.s);
+      }
+      notifyAll();
+      return true;
+    }
+
+    synchronized boolean over() {
+      if (w != null) return w.dn;
+      for (At a : as) {
+        if (!a.dn) return false;
+      }
+      return true;
+    }
+
+    // waits up to ms for a winner or for every attempt to fail, or with no limit until the race is over
+    synchronized void await(long ms) throws InterruptedIOException {
+      long dl = System.currentTimeMillis() + ms;
+      try {
+        if (ms <= 0) {
+          while (!over()) wait();
+        } else {
+          for (long r = ms; w == null && !over() && r > 0; r = dl - System.currentTimeMillis()) wait(r);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted loading " + fn);
+      }
+    }
+  }
+
+  public static void main(String[] a) throws Exception {
+    if (a.length < 3) {
+      System.out.println("Expected: java HGet cport timeout filename [folder]");
+      return;
+    }
+    long st = System.currentTimeMillis();
+    File f = load(Integer.parseInt(a[0]), Integer.parseInt(a[1]), a[2], new File(a.length > 3 ? a[3] : "downloads"));
+    System.out.println("Loaded " + a[2] + " (" + f.length() + " bytes) in " + (System.currentTimeMillis() - st) + "ms");
+  }
+
+  public static File load(int cp, int to, String fn, File dir) throws IOException {
+    File f = new File(dir, fn);
+    boolean ok = false;
+    try (Socket cs = new Socket(InetAddress.getLoopbackAddress(), cp)) {
+      cs.setSoTimeout(to);
+      InputStream in = cs.getInputStream();
+      OutputStream out = new BufferedOutputStream(cs.getOutputStream());
+      Tok tk = new Tok();
+      for (String c = Protocol.LOAD_TOKEN; ; c = Protocol.RELOAD_TOKEN) {
+        String r = rq(out, in, tk, c, fn);
+        if (Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN.equals(r)) throw new FileNotFoundException(fn);
+        if (!Protocol.LOAD_FROM_TOKEN.equals(r)) throw new IOException("Cannot load " + fn + ": " + tk);
+        int p = tk.nextInt();
+        Rc rc = new Rc(fn, f, tk.nextLong(), to);
+        rc.start(p);
+        if (PC < 100) {
+          rc.await(dl());
+          if (rc.w == null && !rc.over() && Protocol.LOAD_FROM_TOKEN.equals(rq(out, in, tk, Protocol.LOAD_HEDGE_TOKEN, fn))) {
+            rc.start(tk.nextInt());
+          }
+        }
+        rc.await(0);
+        if (rc.w != null && rc.w.ok) {
+          sm(rc.w.fb);
+          ok = true;
+          return f;
+        }
+        System.out.println("Load of " + fn + " failed: " + (rc.w != null ? rc.w.ex : rc.as.get(0).ex));
+      }
+    } finally {
+      if (!ok) f.delete();
+    }
+  }
+
+  private static String rq(OutputStream out, InputStream in, Tok tk, String c, String fn) throws IOException {
+    Wire.line(out, c, null, fn);
+    if (!tk.line(in)) throw new EOFException("Controller closed the connection");
+    return Wire.name(tk.op);
+  }
+
+  // the hedge delay in ms: the chosen percentile of recent first-byte latencies, or the default until there are enough
+  private static synchronized long dl() {
+    if (ln < 20) return DF;
+    long[] c = Arrays.copyOf(lt, ln);
+    Arrays.sort(c);
+    return Math.max(1, c[Math.min(ln - 1, (int) (ln * PC / 100))] / 1000);
+  }
+
+  private static synchronized void sm(long fb) {
+    lt[lp] = fb / 1000;
+    lp = (lp + 1) % lt.length;
+    ln = Math.min(ln + 1, lt.length);
+  }
+
+  private static void cl(Socket s) {
+    try {
+      s.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
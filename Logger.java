@@ -18,6 +18,11 @@ public abstract class Logger {
 
   protected abstract String getLFS();
 
+  // lets callers skip building message text nobody will see
+  public boolean on() {
+    return lt != LMode.IGNORE;
+  }
+
   protected synchronized PrintStream getPrintStream() throws IOException {
     if (ps == null)
       ps = new PrintStream(getLFS() + "_" + System.currentTimeMillis() + ".log");
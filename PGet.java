@@ -0,0 +1,181 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Downloads one file from all of its replicas at once. LOAD_REPLICAS names every Dstore holding each block,
+// the blocks are cut into ranges, and one worker per Dstore pulls ranges with ranged LOAD_DATA and writes each
+// straight to its place in the file. Workers take the next range as they finish one, so a slow replica ends up
+// serving fewer; one that fails or stalls for the timeout is dropped and the rest of its range goes to the others.
+public class PGet {
+  private static final long RS = Long.getLong("dfs.pget.range", 8L << 20);
+  private static final int CK = 256 << 10;
+
+  // ln bytes of block bn from offset o, landing at p in the file; advanced as bytes arrive
+  private static class Rg {
+    final String bn;
+    final Set<Integer> ps;
+    long o, p, ln;
+
+    Rg(String bn, Set<Integer> ps, long o, long p, long ln) {
+      this.bn = bn;
+      this.ps = ps;
+      this.o = o;
+      this.p = p;
+      this.ln = ln;
+    }
+  }
+
+  private final Deque<Rg> q = new ArrayDeque<>();
+  private final FileChannel fc;
+  private final int to;
+  private int fl;
+
+  private PGet(FileChannel fc, int to) {
+    this.fc = fc;
+    this.to = to;
+  }
+
+  public static void main(String[] a) throws Exception {
+    if (a.length < 3) {
+      System.out.println("Expected: java PGet cport timeout filename [folder]");
+      return;
+    }
+    long st = System.currentTimeMillis();
+    File f = load(Integer.parseInt(a[0]), Integer.parseInt(a[1]), a[2], new File(a.length > 3 ? a[3] : "downloads"));
+    System.out.println("Loaded " + a[2] + " (" + f.length() + " bytes) in " + (System.currentTimeMillis() - st) + "ms");
+  }
+
+  public static File load(int cp, int to, String fn, File dir) throws IOException {
+    Tok tk = new Tok();
+    try (Socket cs = new Socket(InetAddress.getLoopbackAddress(), cp)) {
+      cs.setSoTimeout(to);
+      Wire.line(new BufferedOutputStream(cs.getOutputStream()), Protocol.LOAD_REPLICAS_TOKEN, null, fn);
+      if (!tk.line(cs.getInputStream())) throw new EOFException("Controller closed the connection");
+    }
+    String c = Wire.name(tk.op);
+    if (Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN.equals(c)) throw new FileNotFoundException(fn);
+    if (!Protocol.LOAD_FROM_REPLICAS_TOKEN.equals(c)) throw new IOException("Cannot load " + fn + ": " + tk);
+
+    long sz = tk.nextLong();
+    int n = tk.nextInt();
+    File f = new File(dir, fn);
+    boolean ok = false;
+    try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+      rf.setLength(sz);
+      PGet g = new PGet(rf.getChannel(), to);
+      Set<Integer> dp = new LinkedHashSet<>();
+      for (long p = 0; n-- > 0; ) {
+        String bn = tk.next();
+        long bs = tk.nextLong();
+        Set<Integer> ps = new LinkedHashSet<>();
+        for (int k = tk.nextInt(); k > 0; k--) ps.add(tk.nextInt());
+        dp.addAll(ps);
+        for (long o = 0; o < bs; o += RS) g.q.add(new Rg(bn, ps, o, p + o, Math.min(RS, bs - o)));
+        p += bs;
+      }
+      g.run(dp);
+      ok = true;
+    } finally {
+      if (!ok) f.delete();
+    }
+    return f;
+  }
+
+  private void run(Set<Integer> dp) throws IOException {
+    List<Thread> ws = new ArrayList<>();
+    for (int p : dp) {
+      Thread w = new Thread(() -> wk(p), "PGet-" + p);
+      w.start();
+      ws.add(w);
+    }
+    for (Thread w : ws) {
+      try {
+        w.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for " + w.getName());
+      }
+    }
+    if (!q.isEmpty()) throw new IOException("No replica left for " + q.peek().bn);
+  }
+
+  // takes ranges its Dstore holds until none are left, waiting while others are in flight since a failed one comes back
+  private void wk(int p) {
+    while (true) {
+      Rg g;
+      synchronized (q) {
+        while ((g = nx(p)) == null && fl > 0) {
+          try {
+            q.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (g == null) return;
+        fl++;
+      }
+      boolean ok = false;
+      try {
+        fetch(p, g);
+        ok = true;
+      } catch (IOException e) {
+        System.out.println("Dropping Dstore " + p + ": " + e);
+      } finally {
+        synchronized (q) {
+          fl--;
+          if (!ok) {
+            g.ps.remove(p);
+            q.addFirst(g);
+          }
+          q.notifyAll();
+        }
+      }
+      if (!ok) return;
+    }
+  }
+
+  private Rg nx(int p) {
+    for (Iterator<Rg> it = q.iterator(); it.hasNext(); ) {
+      Rg g = it.next();
+      if (g.ps.contains(p)) {
+        it.remove();
+        return g;
+      }
+    }
+    return null;
+  }
+
+  private void fetch(int p, Rg g) throws IOException {
+    try (SocketChannel sc = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), p))) {
+      String l = Protocol.LOAD_DATA_TOKEN + " " + g.bn + " " + g.o + " " + g.ln + "\n";
+      ByteBuffer b = ByteBuffer.wrap(l.getBytes(StandardCharsets.UTF_8));
+      while (b.hasRemaining()) sc.write(b);
+      while (g.ln > 0) {
+        // channel reads do not honour SO_TIMEOUT, so a stall closes the channel instead
+        TWheel.TO w = TWheel.schedule(to, () -> cl(sc));
+        long k;
+        try {
+          k = fc.transferFrom(sc, g.p, Math.min(CK, g.ln));
+        } finally {
+          w.cancel();
+        }
+        if (k == 0) throw new EOFException(g.ln + " bytes short of " + g.bn);
+        g.o += k;
+        g.p += k;
+        g.ln -= k;
+      }
+    }
+  }
+
+  private static void cl(SocketChannel sc) {
+    try {
+      sc.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
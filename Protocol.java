@@ -5,9 +5,21 @@ public class Protocol {
 	public final static String LIST_TOKEN = "LIST"; // also from Controller and Dstores
 	public final static String STORE_TOKEN = "STORE"; // also from Dstores
 	public final static String LOAD_TOKEN = "LOAD";
-	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
+	public final static String LOAD_DATA_TOKEN = "LOAD_DATA"; // "LOAD_DATA filename [offset [length]]" sends only that range, clipped to the file
 	public final static String RELOAD_TOKEN = "RELOAD";
+	public final static String LOAD_HEDGE_TOKEN = "LOAD_HEDGE"; // a RELOAD that leaves the running load outstanding, for a client racing two replicas
 	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+	public final static String STORE_BATCH_TOKEN = "STORE_BATCH"; // also to Dstores
+	public final static String LOAD_BATCH_TOKEN = "LOAD_BATCH";
+	public final static String LOAD_DATA_BATCH_TOKEN = "LOAD_DATA_BATCH"; // also from Dstores
+	public final static String REMOVE_BATCH_TOKEN = "REMOVE_BATCH"; // also from Controller
+	public final static String TAG_PREFIX = "#"; // "#id COMMAND ..." tags a pipelined request; replies carry the same tag
+	public final static String PROTOCOL_TOKEN = "PROTOCOL"; // "PROTOCOL BINARY" as the first line asks for Wire framing, answered "PROTOCOL TEXT" by a dfs.io=nio Controller; also from Controller and Dstores
+	public final static String BINARY_TOKEN = "BINARY";
+	public final static String TEXT_TOKEN = "TEXT";
+	public final static String STORE_BLOCKS_TOKEN = "STORE_BLOCKS"; // "STORE_BLOCKS filename filesize" stripes the file over the Dstores in fixed-size blocks
+	public final static String LOAD_BLOCKS_TOKEN = "LOAD_BLOCKS"; // answered with a block map, for striped and whole files alike
+	public final static String LOAD_REPLICAS_TOKEN = "LOAD_REPLICAS"; // as LOAD_BLOCKS, naming every replica of each block
 	
 	// messages sent by the Controller
 	public final static String STORE_TO_TOKEN = "STORE_TO";
@@ -15,6 +27,14 @@ public class Protocol {
 	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
 	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
 	public final static String REBALANCE_TOKEN = "REBALANCE";
+	public final static String STORE_TO_BATCH_TOKEN = "STORE_TO_BATCH";
+	public final static String STORE_COMPLETE_BATCH_TOKEN = "STORE_COMPLETE_BATCH";
+	public final static String LOAD_FROM_BATCH_TOKEN = "LOAD_FROM_BATCH";
+	public final static String REMOVE_COMPLETE_BATCH_TOKEN = "REMOVE_COMPLETE_BATCH";
+	public final static String STORE_TO_BLOCKS_TOKEN = "STORE_TO_BLOCKS"; // blocksize count, then each block's name and R ports
+	public final static String LOAD_FROM_BLOCKS_TOKEN = "LOAD_FROM_BLOCKS"; // filesize count, then each block's name, port and size
+	public final static String LOAD_FROM_REPLICAS_TOKEN = "LOAD_FROM_REPLICAS"; // filesize count, then each block's name, size, replica count and ports
+	public final static String OK_TOKEN = "OK"; // per-file status in batch replies
 	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
 	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
@@ -25,6 +45,8 @@ public class Protocol {
 	public final static String ACK_TOKEN = "ACK";
 	public final static String STORE_ACK_TOKEN = "STORE_ACK";
 	public final static String REMOVE_ACK_TOKEN = "REMOVE_ACK";
+	public final static String STORE_ACK_BATCH_TOKEN = "STORE_ACK_BATCH";
+	public final static String REMOVE_ACK_BATCH_TOKEN = "REMOVE_ACK_BATCH";
 	public final static String JOIN_TOKEN = "JOIN";
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
@@ -0,0 +1,111 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Hashed timing wheel shared by every ack timeout. Scheduling and cancelling are O(1); a single
+// thread advances one slot per tick and hands the expired tasks of that slot to Exec in scheduling
+// order, so a task blocked writing to a slow peer does not hold up the timeouts behind it.
+public class TWheel {
+  public static class TO {
+    private final long dl;
+    private final Runnable r;
+    private long rd;
+    private volatile boolean c;
+
+    private TO(long dl, Runnable r) {
+      this.dl = dl;
+      this.r = r;
+    }
+
+    public void cancel() {
+      c = true;
+    }
+
+    public boolean isCancelled() {
+      return c;
+    }
+  }
+
+  private static final TWheel i = new TWheel(Long.getLong("dfs.wheel.tick", 10), Integer.getInteger("dfs.wheel.slots", 512));
+
+  private final long tk, st;
+  private final Queue<TO>[] w;
+  private final int mk;
+  private final Queue<TO> nq;
+  private long tc;
+
+  public static TO schedule(long ms, Runnable r) {
+    return i.add(ms, r);
+  }
+
+  @SuppressWarnings("unchecked")
+  private TWheel(long tms, int n) {
+    int sz = Integer.highestOneBit(Math.max(1, n - 1)) << 1;
+    tk = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tms));
+    w = (Queue<TO>[]) new Queue<?>[sz];
+    for (int j = 0; j < sz; j++) w[j] = new ArrayDeque<>();
+    mk = sz - 1;
+    nq = new ConcurrentLinkedQueue<>();
+    st = System.nanoTime();
+    Thread th = new Thread(this::run, "TWheel");
+    th.setDaemon(true);
+    th.start();
+  }
+
+  private TO add(long ms, Runnable r) {
+    TO o = new TO(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms), r);
+    nq.add(o);
+    return o;
+  }
+
+  private void run() {
+    while (true) {
+      long sl = st + (tc + 1) * tk - System.nanoTime();
+      if (sl > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sl);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      tr();
+      ex(w[(int) (tc & mk)]);
+      tc++;
+    }
+  }
+
+  private void tr() {
+    TO o;
+    while ((o = nq.poll()) != null) {
+      if (o.c) continue;
+      long tt = Math.max((o.dl - st + tk - 1) / tk, tc);
+      o.rd = (tt - tc) / w.length;
+      w[(int) (tt & mk)].add(o);
+    }
+  }
+
+  private void ex(Queue<TO> b) {
+    Iterator<TO> it = b.iterator();
+    while (it.hasNext()) {
+      TO o = it.next();
+      if (o.c) {
+        it.remove();
+      } else if (o.rd > 0) {
+        o.rd--;
+      } else {
+        it.remove();
+        Exec.run(() -> {
+          // a cancel that lands after the hand-off still wins
+          if (o.c) return;
+          try {
+            o.r.run();
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
+        });
+      }
+    }
+  }
+}
@@ -0,0 +1,179 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// The arguments of one request, read in order, whether they came from a text line or a Wire frame.
+// Each connection reuses one Tok: the request stays in its byte buffer and tokens are offsets into it,
+// so dispatch and number parsing allocate nothing and only next() makes a String.
+// Mirrors the Scanner methods the handlers used, including InputMismatchException on bad numbers.
+public class Tok {
+  byte[] b = new byte[256];
+  int n;
+  int op = -1;
+  long id;
+  private int[] st = new int[16], en = new int[16];
+  private int k, i, tg = -1;
+  private boolean fr, cm;
+
+  // reads one text line, without buffering past it so the same stream can carry frames afterwards
+  public boolean line(InputStream in) throws IOException {
+    n = 0;
+    int c;
+    while ((c = in.read()) != -1 && c != '\n') {
+      if (n == b.length) b = Arrays.copyOf(b, n * 2);
+      b[n++] = (byte) c;
+    }
+    if (c == -1 && n == 0) return false;
+    sp();
+    return true;
+  }
+
+  public void text(byte[] l, int ln) {
+    if (ln > b.length) b = new byte[Math.max(ln, b.length * 2)];
+    System.arraycopy(l, 0, b, 0, ln);
+    n = ln;
+    sp();
+  }
+
+  private void sp() {
+    if (n > 0 && b[n - 1] == '\r') n--;
+    rs(false);
+    for (int p = 0; p < n; ) {
+      while (p < n && ws(b[p])) p++;
+      if (p == n) break;
+      int s = p;
+      while (p < n && !ws(b[p])) p++;
+      add(s, p);
+    }
+    if (k > 0 && b[st[0]] == Protocol.TAG_PREFIX.charAt(0)) tg = i++;
+    if (i < k) {
+      cm = true;
+      op = Wire.op(b, st[i], en[i]);
+      i++;
+    }
+  }
+
+  // a frame body of n bytes, read into the buffer by Wire
+  byte[] frame(int ln) {
+    if (ln > b.length) b = new byte[Math.max(ln, b.length * 2)];
+    n = ln;
+    rs(true);
+    cm = true;
+    return b;
+  }
+
+  void add(int s, int e) {
+    if (k == st.length) {
+      st = Arrays.copyOf(st, k * 2);
+      en = Arrays.copyOf(en, k * 2);
+    }
+    st[k] = s;
+    en[k++] = e;
+  }
+
+  private void rs(boolean f) {
+    fr = f;
+    cm = false;
+    k = i = 0;
+    tg = op = -1;
+    id = 0;
+  }
+
+  private static boolean ws(byte c) {
+    return c == ' ' || c == '\t' || c == '\r';
+  }
+
+  // false for a blank line or a tag with nothing after it
+  public boolean cmd() {
+    return cm;
+  }
+
+  public String tag() {
+    if (tg >= 0) return new String(b, st[tg] + 1, en[tg] - st[tg] - 1, StandardCharsets.UTF_8);
+    return id != 0 ? Long.toString(id) : null;
+  }
+
+  // the untagged text line "PROTOCOL BINARY"
+  public boolean hs() {
+    if (fr || tg >= 0 || k != 2 || op != Wire.op(Protocol.PROTOCOL_TOKEN)) return false;
+    String x = Protocol.BINARY_TOKEN;
+    if (en[1] - st[1] != x.length()) return false;
+    for (int j = 0; j < x.length(); j++) {
+      if (b[st[1] + j] != x.charAt(j)) return false;
+    }
+    return true;
+  }
+
+  public boolean hasNext() {
+    return i < k;
+  }
+
+  public String next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    return new String(b, st[i], en[i] - st[i++], StandardCharsets.UTF_8);
+  }
+
+  public int nextInt() {
+    long v = nextLong();
+    if (v != (int) v) {
+      i--;
+      throw new InputMismatchException(Long.toString(v));
+    }
+    return (int) v;
+  }
+
+  public long nextLong() {
+    if (!hasNext()) throw new NoSuchElementException();
+    if (!hasNextLong()) throw new InputMismatchException(new String(b, st[i], en[i] - st[i], StandardCharsets.UTF_8));
+    int p = st[i], e = en[i];
+    boolean ng = b[p] == '-';
+    if (ng || b[p] == '+') p++;
+    long v = 0;
+    while (p < e) v = v * 10 - (b[p++] - '0');
+    i++;
+    return ng ? v : -v;
+  }
+
+  // digits only, and within range of a long
+  public boolean hasNextLong() {
+    if (!hasNext()) return false;
+    int p = st[i], e = en[i];
+    boolean ng = b[p] == '-';
+    if (ng || b[p] == '+') p++;
+    if (p == e) return false;
+    long v = 0;
+    while (p < e) {
+      int d = b[p++] - '0';
+      if (d < 0 || d > 9 || v < (Long.MIN_VALUE + d) / 10) return false;
+      v = v * 10 - d;
+    }
+    return ng || v != Long.MIN_VALUE;
+  }
+
+  // a detached copy for a request handed to another thread while this one reads the next
+  public Tok copy() {
+    Tok c = new Tok();
+    c.b = Arrays.copyOf(b, n);
+    c.n = n;
+    c.op = op;
+    c.id = id;
+    c.st = Arrays.copyOf(st, k);
+    c.en = Arrays.copyOf(en, k);
+    c.k = k;
+    c.i = i;
+    c.tg = tg;
+    c.fr = fr;
+    c.cm = cm;
+    return c;
+  }
+
+  @Override
+  public String toString() {
+    if (!fr) return new String(b, 0, n, StandardCharsets.UTF_8);
+    StringBuilder sb = new StringBuilder();
+    if (id != 0) sb.append(Protocol.TAG_PREFIX).append(id).append(' ');
+    sb.append(Wire.name(op));
+    for (int j = 0; j < k; j++) sb.append(' ').append(new String(b, st[j], en[j] - st[j], StandardCharsets.UTF_8));
+    return sb.toString();
+  }
+}
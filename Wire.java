@@ -0,0 +1,283 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+// Length-prefixed binary framing a connection switches to after a "PROTOCOL BINARY" handshake line
+// is answered in kind. A frame is varint(body length) followed by the body: the opcode of a Protocol
+// token as one byte, varint(request id, 0 when untagged), then each argument as varint(byte length)
+// and its UTF-8 bytes. Callers pass each argument as its own element of a collection, so nothing is
+// split on spaces. Filenames still may not hold whitespace: the WAL, text LIST replies and every text
+// peer delimit on it, so read() refuses such an argument rather than let a binary client store a name
+// the rest of the system would misparse. A Controller running with dfs.io=nio answers "PROTOCOL TEXT"
+// to the handshake, so binary framing is only available on its blocking connections.
+// The opcodes also drive dispatch of text lines, and both encodings are written straight into a
+// buffered stream kept per socket, so neither side builds a String or a writer per message.
+public class Wire {
+  // a request handler, registered in a table indexed by opcode
+  interface H {
+    void h(Socket s, Tok ps) throws IOException;
+  }
+
+  // opcodes are positions in this table, so new tokens may only be appended
+  private static final String[] OPS = {
+    Protocol.LIST_TOKEN, Protocol.STORE_TOKEN, Protocol.LOAD_TOKEN, Protocol.LOAD_DATA_TOKEN,
+    Protocol.RELOAD_TOKEN, Protocol.REMOVE_TOKEN, Protocol.STORE_TO_TOKEN, Protocol.STORE_COMPLETE_TOKEN,
+    Protocol.LOAD_FROM_TOKEN, Protocol.REMOVE_COMPLETE_TOKEN, Protocol.REBALANCE_TOKEN,
+    Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN,
+    Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, Protocol.ERROR_LOAD_TOKEN, Protocol.ERROR_STORE_TOKEN,
+    Protocol.ACK_TOKEN, Protocol.STORE_ACK_TOKEN, Protocol.REMOVE_ACK_TOKEN, Protocol.JOIN_TOKEN,
+    Protocol.REBALANCE_STORE_TOKEN, Protocol.REBALANCE_COMPLETE_TOKEN, Protocol.STORE_BATCH_TOKEN,
+    Protocol.LOAD_BATCH_TOKEN, Protocol.LOAD_DATA_BATCH_TOKEN, Protocol.REMOVE_BATCH_TOKEN,
+    Protocol.STORE_TO_BATCH_TOKEN, Protocol.STORE_COMPLETE_BATCH_TOKEN, Protocol.LOAD_FROM_BATCH_TOKEN,
+    Protocol.REMOVE_COMPLETE_BATCH_TOKEN, Protocol.STORE_ACK_BATCH_TOKEN, Protocol.REMOVE_ACK_BATCH_TOKEN,
+    Protocol.PROTOCOL_TOKEN, Protocol.STORE_BLOCKS_TOKEN, Protocol.LOAD_BLOCKS_TOKEN,
+    Protocol.STORE_TO_BLOCKS_TOKEN, Protocol.LOAD_FROM_BLOCKS_TOKEN, Protocol.LOAD_REPLICAS_TOKEN,
+    Protocol.LOAD_FROM_REPLICAS_TOKEN, Protocol.LOAD_HEDGE_TOKEN
+  };
+  // open addressed over a hash of the token bytes, holding opcode + 1
+  private static final int[] HT = new int[128];
+  private static final int MX = 1 << 24;
+  private static final Map<Socket, OutputStream> os = new ConcurrentHashMap<>();
+
+  static {
+    for (int i = 0; i < OPS.length; i++) {
+      int h = hh(OPS[i]);
+      while (HT[h] != 0) h = (h + 1) & (HT.length - 1);
+      HT[h] = i + 1;
+    }
+  }
+
+  public static int ops() {
+    return OPS.length;
+  }
+
+  public static String name(int op) {
+    return op < 0 ? null : OPS[op];
+  }
+
+  public static int op(String c) {
+    for (int h = hh(c); HT[h] != 0; h = (h + 1) & (HT.length - 1)) {
+      if (OPS[HT[h] - 1].equals(c)) return HT[h] - 1;
+    }
+    return -1;
+  }
+
+  // the opcode of the token in b[s, e), -1 when it is not one
+  public static int op(byte[] b, int s, int e) {
+    int x = 0;
+    for (int j = s; j < e; j++) x = 31 * x + b[j];
+    for (int h = sp(x); HT[h] != 0; h = (h + 1) & (HT.length - 1)) {
+      String c = OPS[HT[h] - 1];
+      if (c.length() != e - s) continue;
+      int j = 0;
+      while (j < c.length() && b[s + j] == c.charAt(j)) j++;
+      if (j == c.length()) return HT[h] - 1;
+    }
+    return -1;
+  }
+
+  // tokens are ASCII, so this agrees with the byte loop above
+  private static int hh(String c) {
+    return sp(c.hashCode());
+  }
+
+  private static int sp(int x) {
+    return (x ^ x >>> 7 ^ x >>> 16) & (HT.length - 1);
+  }
+
+  // one buffered stream per socket, so a message leaves in a single write; callers hold the socket's monitor
+  public static OutputStream out(Socket s) throws IOException {
+    OutputStream o = os.get(s);
+    if (o != null) return o;
+    o = new BufferedOutputStream(s.getOutputStream());
+    OutputStream p = os.putIfAbsent(s, o);
+    return p != null ? p : o;
+  }
+
+  public static void drop(Socket s) {
+    os.remove(s);
+  }
+
+  // fills tk with the next frame; false on a clean end of stream between frames
+  public static boolean read(InputStream in, Tok tk) throws IOException {
+    long n = rv(in, true);
+    if (n < 0) return false;
+    if (n < 1 || n > MX) throw new IOException("Bad frame length: " + n);
+    byte[] b = tk.frame((int) n);
+    if (in.readNBytes(b, 0, (int) n) < n) throw new EOFException("Truncated frame");
+    int op = b[0] & 0xFF;
+    if (op >= OPS.length) throw new IOException("Unknown opcode " + op);
+    tk.op = op;
+    int p = ve(b, 1, (int) n);
+    tk.id = vv(b, 1, p);
+    while (p < n) {
+      int e = ve(b, p, (int) n);
+      long k = vv(b, p, e);
+      if (k > n - e) throw new EOFException("Truncated argument");
+      for (int j = e; j < e + k; j++) {
+        if ((b[j] & 0xFF) <= ' ') throw new IOException("Whitespace in argument");
+      }
+      tk.add(e, e + (int) k);
+      p = e + (int) k;
+    }
+    return true;
+  }
+
+  // callers serialise writes to one stream
+  public static void write(OutputStream out, String c, long id, Object d) throws IOException {
+    int op = op(c);
+    if (op < 0) throw new IOException("No opcode for " + c);
+    wv(out, 1 + vs(id) + wa(null, d));
+    out.write(op);
+    wv(out, id);
+    wa(out, d);
+    out.flush();
+  }
+
+  // the same message as a text line, "#id " first when tagged
+  public static void line(OutputStream out, String c, String id, Object d) throws IOException {
+    if (id != null) {
+      wu(out, Protocol.TAG_PREFIX, 0, Protocol.TAG_PREFIX.length());
+      wu(out, id, 0, id.length());
+      out.write(' ');
+    }
+    wu(out, c, 0, c.length());
+    if (d instanceof Collection) {
+      for (Object x : (Collection<?>) d) {
+        CharSequence s = cs(x);
+        out.write(' ');
+        wu(out, s, 0, s.length());
+      }
+    } else if (d != null) {
+      CharSequence s = cs(d);
+      out.write(' ');
+      wu(out, s, 0, s.length());
+    }
+    out.write('\n');
+    out.flush();
+  }
+
+  // writes the arguments of d, each element of a collection or anything else as one, and returns
+  // their encoded size; with no stream it only measures them
+  private static int wa(OutputStream o, Object d) throws IOException {
+    if (d == null) return 0;
+    if (!(d instanceof Collection)) {
+      CharSequence s = cs(d);
+      return wf(o, s, 0, s.length());
+    }
+    int t = 0;
+    for (Object x : (Collection<?>) d) {
+      CharSequence s = cs(x);
+      t += wf(o, s, 0, s.length());
+    }
+    return t;
+  }
+
+  private static int wf(OutputStream o, CharSequence s, int p, int e) throws IOException {
+    int u = ul(s, p, e);
+    if (o != null) {
+      wv(o, u);
+      wu(o, s, p, e);
+    }
+    return vs(u) + u;
+  }
+
+  private static CharSequence cs(Object x) {
+    return x instanceof CharSequence ? (CharSequence) x : String.valueOf(x);
+  }
+
+  // UTF-8 as String.getBytes would encode it, unpaired surrogates included
+  private static void wu(OutputStream o, CharSequence s, int p, int e) throws IOException {
+    for (int j = p; j < e; j++) {
+      char c = s.charAt(j);
+      if (c < 0x80) {
+        o.write(c);
+      } else if (c < 0x800) {
+        o.write(0xC0 | c >> 6);
+        o.write(0x80 | c & 0x3F);
+      } else if (Character.isHighSurrogate(c) && j + 1 < e && Character.isLowSurrogate(s.charAt(j + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++j));
+        o.write(0xF0 | cp >> 18);
+        o.write(0x80 | cp >> 12 & 0x3F);
+        o.write(0x80 | cp >> 6 & 0x3F);
+        o.write(0x80 | cp & 0x3F);
+      } else if (Character.isSurrogate(c)) {
+        o.write('?');
+      } else {
+        o.write(0xE0 | c >> 12);
+        o.write(0x80 | c >> 6 & 0x3F);
+        o.write(0x80 | c & 0x3F);
+      }
+    }
+  }
+
+  private static int ul(CharSequence s, int p, int e) {
+    int u = 0;
+    for (int j = p; j < e; j++) {
+      char c = s.charAt(j);
+      if (c < 0x80) {
+        u++;
+      } else if (c < 0x800) {
+        u += 2;
+      } else if (Character.isHighSurrogate(c) && j + 1 < e && Character.isLowSurrogate(s.charAt(j + 1))) {
+        u += 4;
+        j++;
+      } else {
+        u += Character.isSurrogate(c) ? 1 : 3;
+      }
+    }
+    return u;
+  }
+
+  public static String text(Object d) {
+    if (d instanceof Collection) return ((Collection<?>) d).stream().map(String::valueOf).collect(Collectors.joining(" "));
+    return String.valueOf(d);
+  }
+
+  private static void wv(OutputStream o, long v) throws IOException {
+    while ((v & ~0x7FL) != 0) {
+      o.write((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    o.write((int) v);
+  }
+
+  private static int vs(long v) {
+    int n = 1;
+    while ((v & ~0x7FL) != 0) {
+      n++;
+      v >>>= 7;
+    }
+    return n;
+  }
+
+  // the end of the varint starting at b[p]
+  private static int ve(byte[] b, int p, int n) throws IOException {
+    for (int e = p; e < n && e - p < 10; e++) {
+      if (b[e] >= 0) return e + 1;
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  private static long vv(byte[] b, int p, int e) {
+    long v = 0;
+    for (int sh = 0; p < e; sh += 7) v |= (long) (b[p++] & 0x7F) << sh;
+    return v;
+  }
+
+  private static long rv(InputStream in, boolean eof) throws IOException {
+    long v = 0;
+    for (int sh = 0; sh < 64; sh += 7) {
+      int b = in.read();
+      if (b < 0) {
+        if (eof && sh == 0) return -1;
+        throw new EOFException("Truncated varint");
+      }
+      v |= (long) (b & 0x7F) << sh;
+      if ((b & 0x80) == 0) return v;
+    }
+    throw new IOException("Malformed varint");
+  }
+}
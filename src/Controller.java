@@ -1,38 +1,103 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Controller {
     private int cport;
     private int replicationFactor;
     private int timeout;
+    // How long a rebalance waits for REBALANCE_COMPLETE, and so the longest a fenced request can wait
+    private final int rebalanceTimeout;
     private int rebalancePeriod;
+    // Guards fileAllocation, fileSizes, fileStates and fencedFiles, which client handlers and the
+    // rebalance thread update side by side; waiting on a fence waits on it too
+    private final Object indexLock = new Object();
     private Map<String, Set<Integer>> fileAllocation;
     private Map<String, Integer> fileSizes;
     private Map<String, String> fileStates;
     private Set<Integer> dstorePorts;
-    private Map<Integer, Socket> dstoreConnections;
+    private Map<Integer, DstoreConnection> dstoreConnections;
     private Timer rebalanceTimer;
     private CountDownLatch storeAckLatch;
     private CountDownLatch removeAckLatch;
-    private Queue<String> pendingRequests;
+    private final Set<String> fencedFiles;
     private boolean rebalanceInProgress;
+    // Held for a whole rebalance, since joins start them as well as the timer
+    private final Object rebalanceLock = new Object();
+    private final ExecutorService executor;
+    private final ExecutorService connectionExecutor;
+    private final TimingWheel timeoutWheel;
+    private final Map<String, PendingAcks> pendingStoreAcks;
+    private final Map<String, PendingAcks> pendingRemoveAcks;
+    private final Map<Integer, Long> dstoreBytes;
+    private final Map<Integer, Long> dstoreCapacity;
+    private final Map<Integer, AtomicInteger> dstoreLoads;
+    private final String placementMode;
 
     public Controller(int cport, int replicationFactor, int timeout, int rebalancePeriod) {
         this.cport = cport;
         this.replicationFactor = replicationFactor;
         this.timeout = timeout;
+        this.rebalanceTimeout = Integer.getInteger("dfs.rebalance.timeout", timeout);
         this.rebalancePeriod = rebalancePeriod;
         this.fileAllocation = new HashMap<>();
         this.fileSizes = new HashMap<>();
         this.fileStates = new HashMap<>();
-        this.dstorePorts = new HashSet<>();
-        this.dstoreConnections = new HashMap<>();
+        this.dstorePorts = ConcurrentHashMap.newKeySet();
+        this.dstoreConnections = new ConcurrentHashMap<>();
         this.rebalanceTimer = new Timer();
-        this.pendingRequests = new LinkedBlockingQueue<>();
+        this.fencedFiles = new HashSet<>();
         this.rebalanceInProgress = false;
+        this.executor = createExecutor();
+        this.connectionExecutor = createConnectionExecutor(executor);
+        this.timeoutWheel = new TimingWheel(10, 512, executor);
+        this.pendingStoreAcks = new ConcurrentHashMap<>();
+        this.pendingRemoveAcks = new ConcurrentHashMap<>();
+        this.dstoreBytes = new ConcurrentHashMap<>();
+        this.dstoreCapacity = new ConcurrentHashMap<>();
+        this.dstoreLoads = new ConcurrentHashMap<>();
+        this.placementMode = System.getProperty("dfs.placement", "least");
+    }
+
+    private static ExecutorService createExecutor() {
+        String mode = System.getProperty("dfs.exec", "platform");
+        switch (mode) {
+            case "bounded":
+                int threads = Integer.getInteger("dfs.exec.threads", 256);
+                System.out.println("Using a bounded pool of " + threads + " threads");
+                return Executors.newFixedThreadPool(threads);
+            case "virtual":
+                try {
+                    // Looked up reflectively so this still compiles on JDKs without virtual threads
+                    ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    System.out.println("Using virtual threads");
+                    return executor;
+                } catch (ReflectiveOperationException e) {
+                    System.err.println("Virtual threads are not available, falling back to platform threads");
+                }
+                return Executors.newCachedThreadPool();
+            default:
+                return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Connection handlers block reading their socket for as long as it stays open, so in bounded mode they
+    // get threads of their own; otherwise that many idle connections would leave no thread for the tasks
+    // queued behind them
+    private static ExecutorService createConnectionExecutor(ExecutorService executor) {
+        if ("bounded".equals(System.getProperty("dfs.exec", "platform"))) {
+            return Executors.newCachedThreadPool();
+        }
+        return executor;
     }
 
     public void start() {
@@ -48,7 +113,6 @@ public class Controller {
                         rebalanceInProgress = true;
                         rebalance();
                         rebalanceInProgress = false;
-                        processQueuedRequests();
                     }
                 }
             }, rebalancePeriod * 1000, rebalancePeriod * 1000);
@@ -56,7 +120,7 @@ public class Controller {
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("New client connected: " + clientSocket);
-                new Thread(new ClientHandler(clientSocket)).start();
+                connectionExecutor.execute(new ClientHandler(clientSocket));
             }
         } catch (IOException e) {
             System.err.println("Error starting the Controller: " + e.getMessage());
@@ -65,163 +129,465 @@ public class Controller {
     }
 
     private void rebalance() {
+        synchronized (rebalanceLock) {
+            rebalanceOnce();
+        }
+    }
+
+    private void rebalanceOnce() {
         if (dstorePorts.size() < replicationFactor) {
             System.out.println("Not enough Dstores to perform rebalance");
             return;
         }
 
-        // TODO: Implement rebalance logic
         System.out.println("Performing rebalance operation");
+        long startTime = System.nanoTime();
 
-        // 1. Get list of files from each Dstore
+        // 1. Get list of files from each Dstore, noting first which files were already fully stored,
+        // since only those can be judged by what the Dstores report
+        Map<String, Set<Integer>> settledFiles = settledFiles();
         Map<Integer, List<String>> dstoreFiles = getDstoreFiles();
 
-        // 2. Revise file allocation
-        Map<String, Set<Integer>> newAllocation = reviseFileAllocation(dstoreFiles);
+        // 2. Plan the new allocation and the transfers needed to reach it, and 3. fence the files being
+        // moved; requests for every other file carry on as normal
+        RebalancePlan plan;
+        Set<String> fenced;
+        synchronized (indexLock) {
+            plan = planRebalance(dstoreFiles);
+            fenced = fenceFiles(plan);
+        }
+        System.out.println("Rebalance plan: " + plan.sends.size() + " senders, " + plan.removes.size()
+                + " Dstores removing, " + plan.bytesMoved + " bytes to move");
 
-        // 3. Send rebalance instructions to each Dstore
-        sendRebalanceInstructions(newAllocation);
+        try {
+            // 4. Send rebalance instructions to the Dstores that have work to do
+            Set<Integer> instructed = sendRebalanceInstructions(plan);
 
-        // 4. Wait for rebalance completion acknowledgement from Dstores
-        waitForRebalanceCompletion();
+            // 5. Wait for rebalance completion acknowledgement from those Dstores
+            Map<Integer, Set<String>> completed = waitForRebalanceCompletion(instructed);
+
+            // 6. Move in the index only the files that are known to have arrived; any other keeps the
+            // allocation it had, which still holds it since copies are only removed in a later rebalance
+            int kept = 0;
+            synchronized (indexLock) {
+                for (Map.Entry<String, Set<Integer>> entry : plan.allocation.entrySet()) {
+                    String file = entry.getKey();
+                    // A file removed or stored again since it was planned is left as it is now; so is one a
+                    // REMOVE reached after giving up on the fence
+                    if (fileAllocation.get(file) != plan.indexed.get(file) || !"store_complete".equals(fileStates.get(file))) {
+                        continue;
+                    }
+                    if (plan.arrived(file, completed, instructed)) {
+                        reallocateFile(file, entry.getValue());
+                    } else {
+                        kept++;
+                    }
+                }
+            }
+            if (kept > 0) {
+                System.out.println("Kept the old allocation of " + kept + " files that did not finish moving");
+            }
+        } finally {
+            unfenceFiles(fenced);
+        }
 
         // ✓ Remove files from the index if no Dstore reports having them during the rebalance operation.
-        removeOrphanedFiles(dstoreFiles);
+        removeOrphanedFiles(settledFiles, dstoreFiles);
+
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        System.out.println("Rebalance moved " + plan.bytesMoved + " bytes in " + elapsedMillis + " ms ("
+                + plan.bytesMoved * 1000 / elapsedMillis + " bytes/s)");
     }
 
     private Map<Integer, List<String>> getDstoreFiles() {
-        Map<Integer, List<String>> dstoreFiles = new HashMap<>();
+        // Ask every Dstore at once so a slow one does not hold up the others
+        Map<Integer, List<String>> dstoreFiles = new ConcurrentHashMap<>();
+        Map<Integer, DstoreConnection> connections = new HashMap<>();
         for (int dstorePort : dstorePorts) {
-            try {
-                Socket dstoreSocket = dstoreConnections.get(dstorePort);
-                if (dstoreSocket != null && dstoreSocket.isConnected()) {
-                    PrintWriter dstoreOut = new PrintWriter(dstoreSocket.getOutputStream(), true);
-                    BufferedReader dstoreIn = new BufferedReader(new InputStreamReader(dstoreSocket.getInputStream()));
-
-                    dstoreOut.println(Protocol.LIST_TOKEN);
-                    String response = dstoreIn.readLine();
-                    if (response != null) {
-                        if (response.startsWith(Protocol.LIST_TOKEN)) {
-                            String filesString = response.substring(Protocol.LIST_TOKEN.length()).trim();
-                            if (!filesString.isEmpty()) {
-                                String[] files = filesString.split(" ");
-                                dstoreFiles.put(dstorePort, Arrays.asList(files));
-                            } else {
-                                dstoreFiles.put(dstorePort, new ArrayList<>());
-                            }
-                        } else {
-                            System.err.println("Unexpected response from Dstore " + dstorePort + ": " + response);
-                        }
+            DstoreConnection connection = dstoreConnections.get(dstorePort);
+            if (connection != null) {
+                connections.put(dstorePort, connection);
+            } else {
+                System.err.println("Dstore " + dstorePort + " is not connected");
+            }
+        }
+        CountDownLatch latch = new CountDownLatch(connections.size());
+        for (Map.Entry<Integer, DstoreConnection> entry : connections.entrySet()) {
+            int dstorePort = entry.getKey();
+            executor.execute(() -> {
+                try {
+                    List<String> files = listDstoreFiles(dstorePort, entry.getValue());
+                    if (files != null) {
+                        dstoreFiles.put(dstorePort, files);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        try {
+            if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                System.err.println("Timed out waiting for file lists, rebalancing with " + dstoreFiles.size() + " Dstores");
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while waiting for file lists: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+        Map<Integer, List<String>> listed = new HashMap<>(dstoreFiles);
+        for (Map.Entry<Integer, DstoreConnection> entry : connections.entrySet()) {
+            if (!listed.containsKey(entry.getKey())) {
+                replaceConnection(entry.getKey(), entry.getValue());
+            }
+        }
+        return listed;
+    }
+
+    private List<String> listDstoreFiles(int dstorePort, DstoreConnection connection) {
+        try {
+            connection.out.println(Protocol.LIST_TOKEN);
+            String response = connection.in.readLine();
+            if (response != null) {
+                if (response.startsWith(Protocol.LIST_TOKEN)) {
+                    String filesString = response.substring(Protocol.LIST_TOKEN.length()).trim();
+                    if (!filesString.isEmpty()) {
+                        return Arrays.asList(filesString.split(" "));
                     } else {
-                        System.err.println("Empty response from Dstore " + dstorePort);
+                        return new ArrayList<>();
                     }
                 } else {
-                    System.err.println("Dstore " + dstorePort + " is not connected");
+                    System.err.println("Unexpected response from Dstore " + dstorePort + ": " + response);
                 }
-            } catch (IOException e) {
-                System.err.println("Error getting file list from Dstore " + dstorePort + ": " + e.getMessage());
-                e.printStackTrace();
+            } else {
+                System.err.println("Empty response from Dstore " + dstorePort);
             }
+        } catch (IOException e) {
+            System.err.println("Error getting file list from Dstore " + dstorePort + ": " + e.getMessage());
+            e.printStackTrace();
         }
-        return dstoreFiles;
+        return null;
     }
 
-    private Map<String, Set<Integer>> reviseFileAllocation(Map<Integer, List<String>> dstoreFiles) {
-        Map<String, Set<Integer>> newAllocation = new HashMap<>();
-
-        // Create a list of all files across all Dstores
-        List<String> allFiles = new ArrayList<>();
-        for (List<String> files : dstoreFiles.values()) {
-            allFiles.addAll(files);
+    // Result of planning a rebalance: the target allocation of every file and the delta needed to
+    // reach it from what the Dstores reported
+    private static class RebalancePlan {
+        private final Map<String, Set<Integer>> allocation = new HashMap<>();
+        // The allocation set each file had in the index when it was planned
+        private final Map<String, Set<Integer>> indexed = new HashMap<>();
+        private final Map<Integer, Map<String, Set<Integer>>> sends = new HashMap<>();
+        private final Map<Integer, Set<String>> removes = new HashMap<>();
+        private long bytesMoved;
+
+        // Whether a file reached every Dstore it was sent to: its sender answered REBALANCE_COMPLETE without
+        // naming it as failed, and so did each receiver that had instructions of its own. A file that was
+        // not sent anywhere has arrived already.
+        private boolean arrived(String file, Map<Integer, Set<String>> completed, Set<Integer> instructed) {
+            for (Map.Entry<Integer, Map<String, Set<Integer>>> entry : sends.entrySet()) {
+                Set<Integer> receivers = entry.getValue().get(file);
+                if (receivers == null) {
+                    continue;
+                }
+                Set<String> failed = completed.get(entry.getKey());
+                if (failed == null || failed.contains(file)) {
+                    return false;
+                }
+                for (int receiver : receivers) {
+                    if (instructed.contains(receiver) && !completed.containsKey(receiver)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
         }
 
-        // Remove duplicates
-        Set<String> uniqueFiles = new HashSet<>(allFiles);
+        // Indexed files that gain or lose a replica under this plan
+        private Set<String> movedFiles() {
+            Set<String> moved = new HashSet<>();
+            for (Map<String, Set<Integer>> files : sends.values()) {
+                moved.addAll(files.keySet());
+            }
+            for (Set<String> files : removes.values()) {
+                for (String file : files) {
+                    if (allocation.containsKey(file)) {
+                        moved.add(file);
+                    }
+                }
+            }
+            return moved;
+        }
 
-        // Calculate the expected number of files per Dstore
-        int numDstores = dstorePorts.size();
-        int numFiles = uniqueFiles.size();
-        int filesPerDstore = (int) Math.ceil((double) numFiles * replicationFactor / numDstores);
+        private void drop(String file, long filesize) {
+            allocation.remove(file);
+            indexed.remove(file);
+            for (Map<String, Set<Integer>> files : sends.values()) {
+                Set<Integer> targets = files.remove(file);
+                if (targets != null) {
+                    bytesMoved -= filesize * targets.size();
+                }
+            }
+            for (Set<String> files : removes.values()) {
+                files.remove(file);
+            }
+            sends.values().removeIf(Map::isEmpty);
+            removes.values().removeIf(Set::isEmpty);
+        }
+    }
 
-        // Assign files to Dstores
-        List<Integer> dstoreList = new ArrayList<>(dstorePorts);
-        int dstoreIndex = 0;
-        for (String file : uniqueFiles) {
-            Set<Integer> dstores = new HashSet<>();
-            for (int i = 0; i < replicationFactor; i++) {
-                int dstorePort = dstoreList.get(dstoreIndex);
-                dstores.add(dstorePort);
-                dstoreIndex = (dstoreIndex + 1) % numDstores;
+    // Files that changed state since they were listed are left out of this rebalance. Callers hold indexLock
+    private Set<String> fenceFiles(RebalancePlan plan) {
+        Set<String> fenced = new HashSet<>();
+        for (String file : plan.movedFiles()) {
+            if ("store_complete".equals(fileStates.get(file))) {
+                fencedFiles.add(file);
+                fenced.add(file);
+            } else {
+                plan.drop(file, fileSizes.getOrDefault(file, 0));
             }
-            newAllocation.put(file, dstores);
         }
+        System.out.println("Fenced " + fenced.size() + " files for rebalance");
+        return fenced;
+    }
 
-        return newAllocation;
+    private void unfenceFiles(Set<String> fenced) {
+        synchronized (indexLock) {
+            fencedFiles.removeAll(fenced);
+            indexLock.notifyAll();
+        }
     }
 
-    private void sendRebalanceInstructions(Map<String, Set<Integer>> newAllocation) {
-        for (int dstorePort : dstorePorts) {
-            try {
-                Socket dstoreSocket = dstoreConnections.get(dstorePort);
-                PrintWriter dstoreOut = new PrintWriter(dstoreSocket.getOutputStream(), true);
+    // Callers hold indexLock, which is released while waiting. The wait is bounded like the rebalance's own,
+    // after which the request goes ahead on the current allocation; that still holds the file, since a
+    // move only removes the old replicas in a later rebalance.
+    private void awaitFence(String filename) throws InterruptedException {
+        if (!fencedFiles.contains(filename)) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(rebalanceTimeout);
+        while (fencedFiles.contains(filename)) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                System.out.println("Gave up waiting for rebalance of " + filename);
+                return;
+            }
+            indexLock.wait(remainingMillis);
+        }
+        System.out.println("Waited " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)
+                + " ms for rebalance of " + filename);
+    }
 
-                // Create rebalance instructions for the Dstore
-                StringBuilder instructionsBuilder = new StringBuilder();
-                instructionsBuilder.append(Protocol.REBALANCE_TOKEN).append(" ");
+    // Callers hold indexLock
+    private RebalancePlan planRebalance(Map<Integer, List<String>> dstoreFiles) {
+        RebalancePlan plan = new RebalancePlan();
+        List<Integer> dstores = new ArrayList<>(dstoreFiles.keySet());
+        if (dstores.size() < replicationFactor) {
+            return plan;
+        }
 
-                // Files to send
-                List<String> filesToSend = new ArrayList<>();
-                for (Map.Entry<String, Set<Integer>> entry : newAllocation.entrySet()) {
-                    String file = entry.getKey();
-                    Set<Integer> dstores = entry.getValue();
-                    if (dstores.contains(dstorePort) && !fileAllocation.getOrDefault(file, Collections.emptySet()).contains(dstorePort)) {
-                        filesToSend.add(file);
-                    }
+        Map<String, Set<Integer>> holders = new HashMap<>();
+        for (Map.Entry<Integer, List<String>> entry : dstoreFiles.entrySet()) {
+            for (String file : entry.getValue()) {
+                if (fileStates.containsKey(file)) {
+                    holders.computeIfAbsent(file, f -> new HashSet<>()).add(entry.getKey());
+                } else {
+                    // Not in the index at all, so nothing will ever load it
+                    plan.removes.computeIfAbsent(entry.getKey(), port -> new HashSet<>()).add(file);
                 }
-                instructionsBuilder.append(filesToSend.size()).append(" ");
-                for (String file : filesToSend) {
-                    instructionsBuilder.append(file).append(" ");
-                    Set<Integer> dstores = newAllocation.get(file);
-                    instructionsBuilder.append(dstores.size()).append(" ");
-                    for (int port : dstores) {
-                        instructionsBuilder.append(port).append(" ");
-                    }
+            }
+        }
+
+        // Only settled files move; stores and removes in progress are left alone
+        List<String> files = new ArrayList<>();
+        for (String file : holders.keySet()) {
+            if ("store_complete".equals(fileStates.get(file))) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        int maxPerDstore = (int) Math.ceil((double) files.size() * replicationFactor / dstores.size());
+        int minPerDstore = files.size() * replicationFactor / dstores.size();
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int dstorePort : dstores) {
+            counts.put(dstorePort, 0);
+        }
+
+        // Rendezvous hashing: every file ranks the Dstores by a per-(file, Dstore) weight. Current
+        // holders are kept first, then the highest ranked Dstores with room fill the gaps, so a
+        // membership change only moves the files whose ranking it actually changes.
+        for (String file : files) {
+            List<Integer> ranked = new ArrayList<>(dstores);
+            ranked.sort(Comparator.comparingLong((Integer port) -> rendezvousWeight(file, port)).reversed());
+            Set<Integer> current = holders.get(file);
+            Set<Integer> target = new LinkedHashSet<>();
+            for (int dstorePort : ranked) {
+                if (target.size() < replicationFactor && current.contains(dstorePort) && counts.get(dstorePort) < maxPerDstore) {
+                    target.add(dstorePort);
                 }
+            }
+            for (int dstorePort : ranked) {
+                if (target.size() < replicationFactor && counts.get(dstorePort) < maxPerDstore) {
+                    target.add(dstorePort);
+                }
+            }
+            for (int dstorePort : ranked) {
+                if (target.size() < replicationFactor) {
+                    target.add(dstorePort);
+                }
+            }
+            for (int dstorePort : target) {
+                counts.merge(dstorePort, 1, Integer::sum);
+            }
+            plan.allocation.put(file, target);
+            plan.indexed.put(file, fileAllocation.get(file));
+        }
 
-                // Files to remove
-                List<String> filesToRemove = new ArrayList<>();
-                for (Map.Entry<String, Set<Integer>> entry : fileAllocation.entrySet()) {
-                    String file = entry.getKey();
-                    Set<Integer> dstores = entry.getValue();
-                    if (dstores.contains(dstorePort) && !newAllocation.getOrDefault(file, Collections.emptySet()).contains(dstorePort)) {
-                        filesToRemove.add(file);
+        // Top up Dstores left below the floor, preferring files they already hold
+        for (int under : dstores) {
+            for (String file : files) {
+                if (counts.get(under) >= minPerDstore) {
+                    break;
+                }
+                Set<Integer> target = plan.allocation.get(file);
+                if (target.contains(under)) {
+                    continue;
+                }
+                Integer donor = null;
+                for (int dstorePort : target) {
+                    if (counts.get(dstorePort) > minPerDstore && (donor == null || counts.get(dstorePort) > counts.get(donor))) {
+                        donor = dstorePort;
                     }
                 }
-                instructionsBuilder.append(filesToRemove.size()).append(" ");
-                for (String file : filesToRemove) {
-                    instructionsBuilder.append(file).append(" ");
+                if (donor != null && (holders.get(file).contains(under) || counts.get(donor) > minPerDstore + 1)) {
+                    target.remove(donor);
+                    target.add(under);
+                    counts.merge(donor, -1, Integer::sum);
+                    counts.merge(under, 1, Integer::sum);
                 }
+            }
+        }
 
-                // Send rebalance instructions to the Dstore
-                dstoreOut.println(instructionsBuilder.toString());
-            } catch (IOException e) {
-                System.err.println("Error sending rebalance instructions to Dstore " + dstorePort + ": " + e.getMessage());
-                e.printStackTrace();
+        // Emit only the delta between what the Dstores hold and the target. A file being copied keeps
+        // all its current replicas until a later rebalance finds the new ones in place, so a transfer
+        // that fails or never finishes leaves it where the index already says it is.
+        for (String file : files) {
+            Set<Integer> current = holders.get(file);
+            Set<Integer> target = plan.allocation.get(file);
+            Set<Integer> toAdd = new HashSet<>(target);
+            toAdd.removeAll(current);
+            if (!toAdd.isEmpty()) {
+                int source = current.iterator().next();
+                plan.sends.computeIfAbsent(source, port -> new LinkedHashMap<>()).put(file, toAdd);
+                plan.bytesMoved += (long) fileSizes.getOrDefault(file, 0) * toAdd.size();
+                continue;
+            }
+            for (int dstorePort : current) {
+                if (!target.contains(dstorePort)) {
+                    plan.removes.computeIfAbsent(dstorePort, port -> new HashSet<>()).add(file);
+                }
             }
         }
+        return plan;
     }
 
-    private void waitForRebalanceCompletion() {
-        CountDownLatch latch = new CountDownLatch(dstorePorts.size());
+    // Indexes a stored file without any client or Dstore traffic; for RebalanceSimulation
+    void indexStoredFile(String filename, int filesize) {
+        synchronized (indexLock) {
+            fileStates.put(filename, "store_complete");
+            fileSizes.put(filename, filesize);
+        }
+    }
 
-        for (int dstorePort : dstorePorts) {
-            new Thread(() -> {
-                try {
-                    Socket dstoreSocket = dstoreConnections.get(dstorePort);
-                    BufferedReader dstoreIn = new BufferedReader(new InputStreamReader(dstoreSocket.getInputStream()));
+    // The target allocation a rebalance would plan for these file lists, without fencing or sending
+    // anything; for RebalanceSimulation
+    Map<String, Set<Integer>> planAllocation(Map<Integer, List<String>> dstoreFiles) {
+        synchronized (indexLock) {
+            return planRebalance(dstoreFiles).allocation;
+        }
+    }
+
+    private static long rendezvousWeight(String file, int dstorePort) {
+        // MurmurHash3 64-bit finalizer over the file hash and the Dstore port
+        long h = file.hashCode() * 0x9E3779B97F4A7C15L + dstorePort;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
 
-                    String response = dstoreIn.readLine();
-                    if (response != null && response.equals(Protocol.REBALANCE_COMPLETE_TOKEN)) {
+    // Callers hold indexLock
+    private void reallocateFile(String filename, Set<Integer> dstores) {
+        Set<Integer> previous = fileAllocation.put(filename, dstores);
+        long filesize = fileSizes.getOrDefault(filename, 0);
+        if (previous != null) {
+            for (int dstorePort : previous) {
+                dstoreBytes.merge(dstorePort, -filesize, Long::sum);
+            }
+        }
+        for (int dstorePort : dstores) {
+            dstoreBytes.merge(dstorePort, filesize, Long::sum);
+        }
+    }
+
+    private Set<Integer> sendRebalanceInstructions(RebalancePlan plan) {
+        Set<Integer> instructed = new HashSet<>(plan.sends.keySet());
+        instructed.addAll(plan.removes.keySet());
+        for (int dstorePort : new ArrayList<>(instructed)) {
+            DstoreConnection connection = dstoreConnections.get(dstorePort);
+            if (connection == null) {
+                System.err.println("Dstore " + dstorePort + " is not connected, leaving it out of the rebalance");
+                instructed.remove(dstorePort);
+                continue;
+            }
+            // Create rebalance instructions for the Dstore
+            StringBuilder instructionsBuilder = new StringBuilder();
+            instructionsBuilder.append(Protocol.REBALANCE_TOKEN);
+
+            // Files to send, each with the Dstores that should receive it
+            Map<String, Set<Integer>> filesToSend = plan.sends.getOrDefault(dstorePort, Collections.emptyMap());
+            instructionsBuilder.append(" ").append(filesToSend.size());
+            for (Map.Entry<String, Set<Integer>> entry : filesToSend.entrySet()) {
+                instructionsBuilder.append(" ").append(entry.getKey()).append(" ").append(entry.getValue().size());
+                for (int port : entry.getValue()) {
+                    instructionsBuilder.append(" ").append(port);
+                }
+            }
+
+            // Files to remove
+            Set<String> filesToRemove = plan.removes.getOrDefault(dstorePort, Collections.emptySet());
+            instructionsBuilder.append(" ").append(filesToRemove.size());
+            for (String file : filesToRemove) {
+                instructionsBuilder.append(" ").append(file);
+            }
+
+            // Send rebalance instructions to the Dstore
+            connection.out.println(instructionsBuilder.toString());
+            if (connection.out.checkError()) {
+                System.err.println("Error sending rebalance instructions to Dstore " + dstorePort);
+                instructed.remove(dstorePort);
+            }
+        }
+        return instructed;
+    }
+
+    // Returns the Dstores that answered REBALANCE_COMPLETE, each with the files it reported it could not send
+    private Map<Integer, Set<String>> waitForRebalanceCompletion(Set<Integer> instructed) {
+        Map<Integer, Set<String>> completed = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(instructed.size());
+
+        Map<Integer, DstoreConnection> connections = new HashMap<>();
+        for (int dstorePort : instructed) {
+            DstoreConnection connection = dstoreConnections.get(dstorePort);
+            connections.put(dstorePort, connection);
+            executor.execute(() -> {
+                try {
+                    String response = connection.in.readLine();
+                    String[] parts = response == null ? new String[0] : response.split(" ");
+                    if (parts.length > 0 && parts[0].equals(Protocol.REBALANCE_COMPLETE_TOKEN)) {
+                        // Newer Dstores follow it with the files they could not send
+                        completed.put(dstorePort, new HashSet<>(Arrays.asList(parts).subList(1, parts.length)));
                         System.out.println("Received REBALANCE_COMPLETE from Dstore " + dstorePort);
                     } else {
                         System.err.println("Invalid response from Dstore " + dstorePort + " during rebalance: " + response);
@@ -232,60 +598,84 @@ public class Controller {
                 } finally {
                     latch.countDown();
                 }
-            }).start();
+            });
         }
 
         try {
-            latch.await();
-            System.out.println("Rebalance completed");
+            if (latch.await(rebalanceTimeout, TimeUnit.MILLISECONDS)) {
+                System.out.println("Rebalance completed");
+            } else {
+                System.err.println("Timed out waiting for rebalance completion, " + completed.size() + " of "
+                        + instructed.size() + " Dstores answered");
+            }
         } catch (InterruptedException e) {
             System.err.println("Interrupted while waiting for rebalance completion: " + e.getMessage());
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        Map<Integer, Set<String>> answered = new HashMap<>(completed);
+        for (Map.Entry<Integer, DstoreConnection> entry : connections.entrySet()) {
+            if (!answered.containsKey(entry.getKey())) {
+                replaceConnection(entry.getKey(), entry.getValue());
+            }
         }
+        return answered;
     }
 
-
-    private void removeOrphanedFiles(Map<Integer, List<String>> dstoreFiles) {
-        Set<String> reportedFiles = new HashSet<>();
-        for (List<String> files : dstoreFiles.values()) {
-            reportedFiles.addAll(files);
+    // A reply that did not come in time may still come, and would then be read as the answer to whatever
+    // is sent next, so the connection is closed, which also frees a reader still blocked on it, and a
+    // fresh one takes its place
+    private void replaceConnection(int dstorePort, DstoreConnection stale) {
+        try {
+            stale.socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection to Dstore " + dstorePort + ": " + e.getMessage());
+        }
+        try {
+            DstoreConnection fresh = new DstoreConnection(new Socket("localhost", dstorePort));
+            if (!dstoreConnections.replace(dstorePort, stale, fresh)) {
+                fresh.socket.close();
+            }
+        } catch (IOException e) {
+            dstoreConnections.remove(dstorePort, stale);
+            System.err.println("Error reconnecting to Dstore " + dstorePort + ": " + e.getMessage());
         }
+    }
 
-        Set<String> orphanedFiles = new HashSet<>(fileAllocation.keySet());
-        orphanedFiles.removeAll(reportedFiles);
 
-        for (String file : orphanedFiles) {
-            fileAllocation.remove(file);
-            fileSizes.remove(file);
-            fileStates.remove(file);
-            System.out.println("Removed orphaned file from index: " + file);
+    // The fully stored files and their allocation sets. recordStore and reallocateFile always put a new
+    // set, so an unchanged set later means the file was neither removed, stored again nor moved since.
+    private Map<String, Set<Integer>> settledFiles() {
+        Map<String, Set<Integer>> settled = new HashMap<>();
+        synchronized (indexLock) {
+            for (Map.Entry<String, String> entry : fileStates.entrySet()) {
+                if ("store_complete".equals(entry.getValue())) {
+                    settled.put(entry.getKey(), fileAllocation.get(entry.getKey()));
+                }
+            }
         }
+        return settled;
     }
 
-    private void processQueuedRequests() {
-        while (!pendingRequests.isEmpty()) {
-            String request = pendingRequests.poll();
-            String[] parts = request.split(" ");
-            String command = parts[0];
+    // Only a file that was fully stored before the Dstores listed their files, and is still in the
+    // same state, counts as orphaned when none of them reported it; a store that began or finished
+    // after the lists were taken is simply not in them yet. Every Dstore the file is allocated to must
+    // have answered, too, since one that did not says nothing about what it holds.
+    private void removeOrphanedFiles(Map<String, Set<Integer>> settledFiles, Map<Integer, List<String>> dstoreFiles) {
+        Set<String> reportedFiles = new HashSet<>();
+        for (List<String> files : dstoreFiles.values()) {
+            reportedFiles.addAll(files);
+        }
 
-            switch (command) {
-                case Protocol.STORE_TOKEN:
-                    handleStoreRequest(parts, new PrintWriter(System.out));
-                    break;
-                case Protocol.LOAD_TOKEN:
-                    handleLoadRequest(parts, new PrintWriter(System.out));
-                    break;
-                case Protocol.REMOVE_TOKEN:
-                    handleRemoveRequest(parts, new PrintWriter(System.out));
-                    break;
-                case Protocol.LIST_TOKEN:
-                    handleListRequest(new PrintWriter(System.out));
-                    break;
-                case Protocol.JOIN_TOKEN:
-                    handleJoinRequest(parts);
-                    break;
-                default:
-                    System.out.println("Unknown command in queued request: " + command);
+        synchronized (indexLock) {
+            for (Map.Entry<String, Set<Integer>> entry : settledFiles.entrySet()) {
+                String file = entry.getKey();
+                if (reportedFiles.contains(file) || !"store_complete".equals(fileStates.get(file))
+                        || fileAllocation.get(file) != entry.getValue() || entry.getValue() == null
+                        || !dstoreFiles.keySet().containsAll(entry.getValue())) {
+                    continue;
+                }
+                forgetFile(file);
+                System.out.println("Removed orphaned file from index: " + file);
             }
         }
     }
@@ -303,48 +693,24 @@ public class Controller {
                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
                 PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
 
-                String request = in.readLine();
-                System.out.println("Received request from client: " + request);
-
-                if (request == null) {
-                    System.out.println("Empty request received from client");
-                    return;
-                }
-
-                if (rebalanceInProgress) {
-                    // ✓ Queue client requests during the rebalance operation and serve them once the rebalance is completed.
-                    pendingRequests.offer(request);
-                    System.out.println("Queued request during rebalance: " + request);
-                    return;
-                }
+                // The connection stays open for as many requests as the client sends
+                String request;
+                while ((request = in.readLine()) != null) {
+                    System.out.println("Received request from client: " + request);
 
-                String[] parts = request.split(" ");
-                String command = parts[0];
-
-                switch (command) {
-                    case Protocol.STORE_TOKEN:
-                        handleStoreRequest(parts, out);
-                        break;
-                    case Protocol.LOAD_TOKEN:
-                        handleLoadRequest(parts, out);
-                        break;
-                    case Protocol.REMOVE_TOKEN:
-                        handleRemoveRequest(parts, out);
-                        break;
-                    case Protocol.LIST_TOKEN:
-                        handleListRequest(out);
-                        break;
-                    case Protocol.JOIN_TOKEN:
-                        // ✓ Queue Dstore JOIN requests during the rebalance operation and serve them once the rebalance is completed.
-                        if (rebalanceInProgress) {
-                            pendingRequests.offer(request);
-                            System.out.println("Queued JOIN request during rebalance: " + request);
-                        } else {
-                            handleJoinRequest(parts);
+                    if (request.startsWith(Protocol.TAG_PREFIX)) {
+                        int space = request.indexOf(' ');
+                        if (space < 0) {
+                            System.out.println("Invalid tagged request: " + request);
+                            continue;
                         }
-                        break;
-                    default:
-                        System.out.println("Unknown command: " + command);
+                        String[] parts = request.substring(space + 1).split(" ");
+                        PrintWriter taggedOut = new TaggedWriter(out, request.substring(0, space));
+                        // Tagged requests run concurrently and are answered in whatever order they finish
+                        executor.execute(() -> handleRequest(parts, taggedOut));
+                    } else {
+                        handleRequest(request.split(" "), out);
+                    }
                 }
             } catch (IOException e) {
                 System.err.println("Error handling client request: " + e.getMessage());
@@ -359,6 +725,89 @@ public class Controller {
                 }
             }
         }
+
+        private void handleRequest(String[] parts, PrintWriter out) {
+            String command = parts[0];
+
+            switch (command) {
+                case Protocol.STORE_TOKEN:
+                    handleStoreRequest(parts, out);
+                    break;
+                case Protocol.LOAD_TOKEN:
+                    handleLoadRequest(parts, out);
+                    break;
+                case Protocol.REMOVE_TOKEN:
+                    handleRemoveRequest(parts, out);
+                    break;
+                case Protocol.LIST_TOKEN:
+                    handleListRequest(out);
+                    break;
+                case Protocol.STORE_ACK_TOKEN:
+                    handleStoreAck(parts);
+                    break;
+                case Protocol.REMOVE_ACK_TOKEN:
+                    handleRemoveAck(parts);
+                    break;
+                case Protocol.STORE_BATCH_TOKEN:
+                    handleStoreBatchRequest(parts, out);
+                    break;
+                case Protocol.LOAD_BATCH_TOKEN:
+                    handleLoadBatchRequest(parts, out);
+                    break;
+                case Protocol.REMOVE_BATCH_TOKEN:
+                    handleRemoveBatchRequest(parts, out);
+                    break;
+                case Protocol.STORE_ACK_BATCH_TOKEN:
+                    for (String filename : batchFilenames(parts)) {
+                        acknowledgeStore(filename);
+                    }
+                    break;
+                case Protocol.REMOVE_ACK_BATCH_TOKEN:
+                    for (String filename : batchFilenames(parts)) {
+                        acknowledgeRemove(filename);
+                    }
+                    break;
+                case Protocol.JOIN_TOKEN:
+                    // A Dstore joining mid-rebalance is picked up by the next one
+                    handleJoinRequest(parts);
+                    break;
+                default:
+                    System.out.println("Unknown command: " + command);
+            }
+        }
+    }
+
+    // The Controller's own connection to a Dstore's client port. LIST, REMOVE and REBALANCE go out on it
+    // and the replies to LIST and REBALANCE come back on it, all read through the one reader so that
+    // no reply is lost in the buffer of another.
+    private static class DstoreConnection {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+
+        DstoreConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new PrintWriter(socket.getOutputStream(), true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
+    }
+
+    // Writes each reply line prefixed with the tag of the request it answers. PrintWriter.println
+    // is atomic, so replies to concurrent tagged requests never interleave on the connection.
+    private static class TaggedWriter extends PrintWriter {
+        private final PrintWriter connection;
+        private final String tag;
+
+        TaggedWriter(PrintWriter connection, String tag) {
+            super(connection, true);
+            this.connection = connection;
+            this.tag = tag;
+        }
+
+        @Override
+        public void println(String line) {
+            connection.println(tag + " " + line);
+        }
     }
 
     private void handleStoreRequest(String[] parts, PrintWriter out) {
@@ -376,29 +825,223 @@ public class Controller {
             return;
         }
 
-        if (fileStates.containsKey(filename)) {
-            out.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
-            System.out.println("File already exists: " + filename);
-            return;
+        // Claimed atomically, so of two STOREs of one name running side by side only one gets through
+        synchronized (indexLock) {
+            if (fileStates.putIfAbsent(filename, "store_in_progress") != null) {
+                out.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                System.out.println("File already exists: " + filename);
+                return;
+            }
         }
-
-        fileStates.put(filename, "store_in_progress");
         System.out.println("Storing file: " + filename);
 
-        List<Integer> selectedDstores = selectDstores();
+        List<Integer> selectedDstores = selectDstores(filesize);
+        if (selectedDstores.isEmpty()) {
+            synchronized (indexLock) {
+                fileStates.remove(filename, "store_in_progress");
+            }
+            out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            System.out.println("Not enough Dstore capacity to store file: " + filename);
+            return;
+        }
         StringBuilder storeToMessage = new StringBuilder(Protocol.STORE_TO_TOKEN);
         for (int dstorePort : selectedDstores) {
             storeToMessage.append(" ").append(dstorePort);
         }
+        // Recorded before the client hears where to send the file, so the index and the ack
+        // timeout are already in place when the first STORE_ACK arrives
+        recordStore(filename, filesize, selectedDstores);
         out.println(storeToMessage.toString());
         System.out.println("Sent STORE_TO message to client: " + storeToMessage);
+    }
 
-        fileSizes.put(filename, filesize);
-        fileAllocation.put(filename, new HashSet<>(selectedDstores));
+    private void recordStore(String filename, int filesize, List<Integer> selectedDstores) {
+        synchronized (indexLock) {
+            fileSizes.put(filename, filesize);
+            fileAllocation.put(filename, new HashSet<>(selectedDstores));
+        }
+        for (int dstorePort : selectedDstores) {
+            dstoreBytes.merge(dstorePort, (long) filesize, Long::sum);
+        }
 
         startStoreAckTimeout(filename);
     }
 
+    // STORE_BATCH count (filename filesize)*: the whole batch is checked against the index in one
+    // pass and placed with a single selectDstores call, so every accepted file goes to the same Dstores.
+    // Reply: STORE_TO_BATCH portCount port* count (filename status)*
+    private void handleStoreBatchRequest(String[] parts, PrintWriter out) {
+        int count = batchCount(parts, 2);
+        if (count < 0) {
+            System.out.println("Invalid store batch request: " + String.join(" ", parts));
+            return;
+        }
+
+        if (dstorePorts.size() < replicationFactor) {
+            out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            System.out.println("Not enough Dstores to handle store batch of " + count + " files");
+            return;
+        }
+
+        Map<String, String> statuses = new LinkedHashMap<>();
+        Map<String, Integer> accepted = new LinkedHashMap<>();
+        long totalSize = 0;
+        synchronized (indexLock) {
+            for (int i = 0; i < count; i++) {
+                String filename = parts[2 + 2 * i];
+                int filesize = Integer.parseInt(parts[3 + 2 * i]);
+                if (statuses.containsKey(filename)) {
+                    continue;
+                }
+                if (fileStates.putIfAbsent(filename, "store_in_progress") != null) {
+                    statuses.put(filename, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                    continue;
+                }
+                statuses.put(filename, Protocol.OK_TOKEN);
+                accepted.put(filename, filesize);
+                totalSize += filesize;
+            }
+        }
+
+        List<Integer> selectedDstores = accepted.isEmpty() ? Collections.emptyList() : selectDstores(totalSize);
+        if (selectedDstores.isEmpty()) {
+            synchronized (indexLock) {
+                for (String filename : accepted.keySet()) {
+                    fileStates.remove(filename, "store_in_progress");
+                    statuses.put(filename, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                }
+            }
+            accepted.clear();
+        }
+        for (Map.Entry<String, Integer> entry : accepted.entrySet()) {
+            recordStore(entry.getKey(), entry.getValue(), selectedDstores);
+        }
+
+        StringBuilder reply = new StringBuilder(Protocol.STORE_TO_BATCH_TOKEN);
+        reply.append(" ").append(selectedDstores.size());
+        for (int dstorePort : selectedDstores) {
+            reply.append(" ").append(dstorePort);
+        }
+        appendStatuses(reply, statuses);
+        out.println(reply.toString());
+        System.out.println("Sent STORE_TO_BATCH for " + accepted.size() + " of " + count + " files to " + selectedDstores);
+    }
+
+    // LOAD_BATCH count filename*; reply: LOAD_FROM_BATCH count (filename OK port filesize | filename error)*
+    private void handleLoadBatchRequest(String[] parts, PrintWriter out) {
+        int count = batchCount(parts, 1);
+        if (count < 0) {
+            System.out.println("Invalid load batch request: " + String.join(" ", parts));
+            return;
+        }
+
+        Map<String, String> statuses = new LinkedHashMap<>();
+        synchronized (indexLock) {
+            for (int i = 0; i < count; i++) {
+                String filename = parts[2 + i];
+                try {
+                    awaitFence(filename);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                if (!"store_complete".equals(fileStates.get(filename))) {
+                    statuses.put(filename, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                } else {
+                    statuses.put(filename, Protocol.OK_TOKEN + " " + selectDstoreForLoad(filename) + " " + fileSizes.get(filename));
+                }
+            }
+        }
+
+        StringBuilder reply = new StringBuilder(Protocol.LOAD_FROM_BATCH_TOKEN);
+        appendStatuses(reply, statuses);
+        out.println(reply.toString());
+        System.out.println("Sent LOAD_FROM_BATCH for " + count + " files");
+    }
+
+    // REMOVE_BATCH count filename*: each Dstore gets one REMOVE_BATCH for all of its files.
+    // Reply: REMOVE_COMPLETE_BATCH count (filename status)*
+    private void handleRemoveBatchRequest(String[] parts, PrintWriter out) {
+        int count = batchCount(parts, 1);
+        if (count < 0) {
+            System.out.println("Invalid remove batch request: " + String.join(" ", parts));
+            return;
+        }
+
+        Map<String, String> statuses = new LinkedHashMap<>();
+        Map<Integer, List<String>> filesByDstore = new HashMap<>();
+        synchronized (indexLock) {
+            for (int i = 0; i < count; i++) {
+                String filename = parts[2 + i];
+                try {
+                    awaitFence(filename);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                String state = fileStates.get(filename);
+                if (state == null || state.equals("remove_in_progress") || statuses.containsKey(filename)) {
+                    statuses.putIfAbsent(filename, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                    continue;
+                }
+                fileStates.put(filename, "remove_in_progress");
+                statuses.put(filename, Protocol.OK_TOKEN);
+                for (int dstorePort : fileAllocation.getOrDefault(filename, Collections.emptySet())) {
+                    filesByDstore.computeIfAbsent(dstorePort, port -> new ArrayList<>()).add(filename);
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, List<String>> entry : filesByDstore.entrySet()) {
+            DstoreConnection connection = dstoreConnections.get(entry.getKey());
+            if (connection == null) {
+                continue;
+            }
+            connection.out.println(Protocol.REMOVE_BATCH_TOKEN + " " + entry.getValue().size() + " " + String.join(" ", entry.getValue()));
+            if (connection.out.checkError()) {
+                System.err.println("Error sending remove batch to Dstore " + entry.getKey());
+            } else {
+                System.out.println("Sent REMOVE_BATCH of " + entry.getValue().size() + " files to Dstore: " + entry.getKey());
+            }
+        }
+        for (Map.Entry<String, String> entry : statuses.entrySet()) {
+            if (entry.getValue().equals(Protocol.OK_TOKEN)) {
+                startRemoveAckTimeout(entry.getKey());
+            }
+        }
+
+        StringBuilder reply = new StringBuilder(Protocol.REMOVE_COMPLETE_BATCH_TOKEN);
+        appendStatuses(reply, statuses);
+        out.println(reply.toString());
+    }
+
+    // Returns the count a batch message starts with, or -1 if the message does not carry that many items
+    private static int batchCount(String[] parts, int fieldsPerItem) {
+        try {
+            int count = Integer.parseInt(parts[1]);
+            return count >= 0 && parts.length == 2 + count * fieldsPerItem ? count : -1;
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static List<String> batchFilenames(String[] parts) {
+        if (batchCount(parts, 1) < 0) {
+            System.out.println("Invalid batch ack: " + String.join(" ", parts));
+            return Collections.emptyList();
+        }
+        return Arrays.asList(parts).subList(2, parts.length);
+    }
+
+    private static void appendStatuses(StringBuilder reply, Map<String, String> statuses) {
+        reply.append(" ").append(statuses.size());
+        for (Map.Entry<String, String> entry : statuses.entrySet()) {
+            reply.append(" ").append(entry.getKey()).append(" ").append(entry.getValue());
+        }
+    }
+
     private void handleLoadRequest(String[] parts, PrintWriter out) {
         if (parts.length != 2) {
             System.out.println("Invalid load request: " + Arrays.toString(parts));
@@ -407,14 +1050,26 @@ public class Controller {
 
         String filename = parts[1];
 
-        if (!fileStates.containsKey(filename) || !fileStates.get(filename).equals("store_complete")) {
-            out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-            System.out.println("File does not exist: " + filename);
-            return;
-        }
+        int dstorePort;
+        int filesize;
+        synchronized (indexLock) {
+            // ✓ Only requests for files being moved by a rebalance wait, and only until that move finishes.
+            try {
+                awaitFence(filename);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (!fileStates.containsKey(filename) || !fileStates.get(filename).equals("store_complete")) {
+                out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                System.out.println("File does not exist: " + filename);
+                return;
+            }
 
-        int dstorePort = selectDstoreForLoad(filename);
-        int filesize = fileSizes.get(filename);
+            dstorePort = selectDstoreForLoad(filename);
+            filesize = fileSizes.get(filename);
+        }
         out.println(Protocol.LOAD_FROM_TOKEN + " " + dstorePort + " " + filesize);
         System.out.println("Sent LOAD_FROM message to client for file: " + filename);
     }
@@ -427,26 +1082,37 @@ public class Controller {
 
         String filename = parts[1];
 
-        if (!fileStates.containsKey(filename)) {
-            out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-            System.out.println("File does not exist: " + filename);
-            return;
-        }
+        Set<Integer> dstorePorts;
+        synchronized (indexLock) {
+            try {
+                awaitFence(filename);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            // A file already being removed is gone as far as clients are concerned, so only one REMOVE
+            // of it goes out to the Dstores
+            String state = fileStates.get(filename);
+            if (state == null || state.equals("remove_in_progress")) {
+                out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                System.out.println("File does not exist: " + filename);
+                return;
+            }
 
-        fileStates.put(filename, "remove_in_progress");
+            fileStates.put(filename, "remove_in_progress");
+            dstorePorts = new HashSet<>(fileAllocation.getOrDefault(filename, Collections.emptySet()));
+        }
         System.out.println("Removing file: " + filename);
 
-        Set<Integer> dstorePorts = fileAllocation.get(filename);
         for (int dstorePort : dstorePorts) {
-            Socket dstoreSocket = dstoreConnections.get(dstorePort);
-            if (dstoreSocket != null) {
-                try {
-                    PrintWriter dstoreOut = new PrintWriter(dstoreSocket.getOutputStream(), true);
-                    dstoreOut.println(Protocol.REMOVE_TOKEN + " " + filename);
+            DstoreConnection connection = dstoreConnections.get(dstorePort);
+            if (connection != null) {
+                connection.out.println(Protocol.REMOVE_TOKEN + " " + filename);
+                if (connection.out.checkError()) {
+                    System.err.println("Error sending remove request to Dstore " + dstorePort);
+                } else {
                     System.out.println("Sent REMOVE message to Dstore: " + dstorePort);
-                } catch (IOException e) {
-                    System.err.println("Error sending remove request to Dstore " + dstorePort + ": " + e.getMessage());
-                    e.printStackTrace();
                 }
             }
         }
@@ -456,9 +1122,11 @@ public class Controller {
 
     private void handleListRequest(PrintWriter out) {
         List<String> completeFiles = new ArrayList<>();
-        for (Map.Entry<String, String> entry : fileStates.entrySet()) {
-            if (entry.getValue().equals("store_complete")) {
-                completeFiles.add(entry.getKey());
+        synchronized (indexLock) {
+            for (Map.Entry<String, String> entry : fileStates.entrySet()) {
+                if (entry.getValue().equals("store_complete")) {
+                    completeFiles.add(entry.getKey());
+                }
             }
         }
 
@@ -475,21 +1143,24 @@ public class Controller {
     }
 
     private void handleJoinRequest(String[] parts) {
-        if (parts.length != 2) {
+        if (parts.length != 2 && parts.length != 3) {
             System.out.println("Invalid join request: " + Arrays.toString(parts));
             return;
         }
 
         int dstorePort = Integer.parseInt(parts[1]);
         dstorePorts.add(dstorePort);
+        if (parts.length == 3) {
+            // Newer Dstores also report their free space so placement can avoid full disks
+            dstoreCapacity.put(dstorePort, Long.parseLong(parts[2]));
+        }
 
         // Retry connecting to the Dstore with a delay
         boolean connected = false;
         int retryCount = 0;
         while (!connected && retryCount < 3) {
             try {
-                Socket dstoreSocket = new Socket("localhost", dstorePort);
-                dstoreConnections.put(dstorePort, dstoreSocket);
+                dstoreConnections.put(dstorePort, new DstoreConnection(new Socket("localhost", dstorePort)));
                 System.out.println("Dstore " + dstorePort + " joined the system");
                 connected = true;
             } catch (IOException e) {
@@ -514,77 +1185,306 @@ public class Controller {
         }
     }
 
-    private List<Integer> selectDstores() {
-        List<Integer> selectedDstores = new ArrayList<>(dstorePorts);
-        Collections.shuffle(selectedDstores);
-        return selectedDstores.subList(0, replicationFactor);
+    private List<Integer> selectDstores(long filesize) {
+        List<Integer> candidates = new ArrayList<>();
+        boolean allReportedCapacity = true;
+        long maxUsed = 1;
+        for (int dstorePort : dstorePorts) {
+            long used = dstoreBytes.getOrDefault(dstorePort, 0L) + filesize;
+            long capacity = dstoreCapacity.getOrDefault(dstorePort, -1L);
+            if (capacity >= 0 && used > capacity) {
+                continue;
+            }
+            candidates.add(dstorePort);
+            allReportedCapacity &= capacity > 0;
+            maxUsed = Math.max(maxUsed, used);
+        }
+        if (candidates.size() < replicationFactor) {
+            return Collections.emptyList();
+        }
+
+        // Load is the fraction of capacity in use, or bytes relative to the fullest candidate
+        // when some Dstore did not report its capacity
+        Map<Integer, Double> loads = new HashMap<>();
+        for (int dstorePort : candidates) {
+            long used = dstoreBytes.getOrDefault(dstorePort, 0L) + filesize;
+            loads.put(dstorePort, (double) used / (allReportedCapacity ? dstoreCapacity.get(dstorePort) : maxUsed));
+        }
+
+        Random random = ThreadLocalRandom.current();
+        List<Integer> selectedDstores = new ArrayList<>();
+        switch (placementMode) {
+            case "random":
+                Collections.shuffle(candidates, random);
+                selectedDstores.addAll(candidates.subList(0, replicationFactor));
+                break;
+            case "p2c":
+                while (selectedDstores.size() < replicationFactor) {
+                    Integer first = candidates.get(random.nextInt(candidates.size()));
+                    Integer second = candidates.get(random.nextInt(candidates.size()));
+                    Integer chosen = loads.get(second) < loads.get(first) ? second : first;
+                    selectedDstores.add(chosen);
+                    candidates.remove(chosen);
+                }
+                break;
+            case "weighted":
+                while (selectedDstores.size() < replicationFactor) {
+                    double totalWeight = 0;
+                    for (int dstorePort : candidates) {
+                        totalWeight += 1.0 / (1.0 + loads.get(dstorePort));
+                    }
+                    double target = random.nextDouble() * totalWeight;
+                    Integer chosen = candidates.get(candidates.size() - 1);
+                    for (Integer dstorePort : candidates) {
+                        target -= 1.0 / (1.0 + loads.get(dstorePort));
+                        if (target <= 0) {
+                            chosen = dstorePort;
+                            break;
+                        }
+                    }
+                    selectedDstores.add(chosen);
+                    candidates.remove(chosen);
+                }
+                break;
+            default:
+                candidates.sort(Comparator.comparingDouble(loads::get));
+                selectedDstores.addAll(candidates.subList(0, replicationFactor));
+        }
+        return selectedDstores;
+    }
+
+    private void forgetFile(String filename) {
+        Set<Integer> dstores;
+        Integer filesize;
+        synchronized (indexLock) {
+            dstores = fileAllocation.remove(filename);
+            filesize = fileSizes.remove(filename);
+            fileStates.remove(filename);
+        }
+        if (dstores != null && filesize != null) {
+            for (int dstorePort : dstores) {
+                dstoreBytes.merge(dstorePort, (long) -filesize, Long::sum);
+            }
+        }
     }
 
     private int selectDstoreForLoad(String filename) {
-        Set<Integer> dstorePorts = fileAllocation.get(filename);
-        return dstorePorts.iterator().next();
+        List<Integer> replicas = new ArrayList<>(fileAllocation.get(filename));
+        int chosen = replicas.get(0);
+        if (replicas.size() > 1) {
+            // Power of two choices over the LOADs each replica is currently serving
+            Random random = ThreadLocalRandom.current();
+            int first = replicas.get(random.nextInt(replicas.size()));
+            int second = replicas.get(random.nextInt(replicas.size() - 1));
+            if (second == first) {
+                second = replicas.get(replicas.size() - 1);
+            }
+            chosen = outstandingLoads(second) < outstandingLoads(first) ? second : first;
+        }
+
+        // Clients do not report when a download finishes, so each LOAD_FROM counts as
+        // outstanding for one timeout period
+        AtomicInteger loads = dstoreLoads.computeIfAbsent(chosen, port -> new AtomicInteger());
+        loads.incrementAndGet();
+        timeoutWheel.schedule(timeout, loads::decrementAndGet);
+        return chosen;
+    }
+
+    private int outstandingLoads(int dstorePort) {
+        AtomicInteger loads = dstoreLoads.get(dstorePort);
+        return loads == null ? 0 : loads.get();
     }
 
     private void startStoreAckTimeout(String filename) {
-        CountDownLatch latch = new CountDownLatch(replicationFactor);
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (latch.getCount() > 0) {
-                    fileStates.remove(filename);
-                    fileSizes.remove(filename);
-                    fileAllocation.remove(filename);
-                    System.out.println("Store operation timed out for file: " + filename);
-                } else {
-                    fileStates.put(filename, "store_complete");
-                    System.out.println("Store operation completed for file: " + filename);
+        PendingAcks pending = new PendingAcks(replicationFactor);
+        pendingStoreAcks.put(filename, pending);
+        pending.timeout = timeoutWheel.schedule(timeout, () -> {
+            if (pendingStoreAcks.remove(filename, pending)) {
+                // A REMOVE that arrived mid-store owns the entry now and forgets it once acknowledged
+                synchronized (indexLock) {
+                    if ("store_in_progress".equals(fileStates.get(filename))) {
+                        forgetFile(filename);
+                    }
                 }
+                System.out.println("Store operation timed out for file: " + filename);
             }
-        }, timeout);
+        });
+    }
 
-        for (int i = 0; i < replicationFactor; i++) {
-            new Thread(() -> {
-                try {
-                    // Wait for STORE_ACK from Dstore
-                    // ...
-                    latch.countDown();
-                } catch (Exception e) {
-                    System.err.println("Error waiting for STORE_ACK: " + e.getMessage());
-                    e.printStackTrace();
-                }
-            }).start();
+    private void handleStoreAck(String[] parts) {
+        if (parts.length != 2) {
+            System.out.println("Invalid store ack: " + Arrays.toString(parts));
+            return;
+        }
+
+        acknowledgeStore(parts[1]);
+    }
+
+    private void acknowledgeStore(String filename) {
+        PendingAcks pending = pendingStoreAcks.get(filename);
+        if (pending == null) {
+            System.out.println("Ignoring late STORE_ACK for file: " + filename);
+            return;
+        }
+
+        pending.latch.countDown();
+        if (pending.latch.getCount() == 0 && pendingStoreAcks.remove(filename, pending)) {
+            pending.timeout.cancel();
+            // Only a store still in progress completes; one that a REMOVE overtook stays removed
+            synchronized (indexLock) {
+                fileStates.replace(filename, "store_in_progress", "store_complete");
+            }
+            System.out.println("Store operation completed for file: " + filename);
         }
     }
 
     private void startRemoveAckTimeout(String filename) {
-        CountDownLatch latch = new CountDownLatch(replicationFactor);
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (latch.getCount() > 0) {
-                    System.out.println("Remove operation timed out for file: " + filename);
-                } else {
-                    fileStates.remove(filename);
-                    fileSizes.remove(filename);
-                    fileAllocation.remove(filename);
-                    System.out.println("Remove operation completed for file: " + filename);
-                }
+        int expectedAcks;
+        synchronized (indexLock) {
+            expectedAcks = fileAllocation.getOrDefault(filename, Collections.emptySet()).size();
+        }
+        PendingAcks pending = new PendingAcks(expectedAcks);
+        pendingRemoveAcks.put(filename, pending);
+        pending.timeout = timeoutWheel.schedule(timeout, () -> {
+            if (pendingRemoveAcks.remove(filename, pending)) {
+                System.out.println("Remove operation timed out for file: " + filename);
             }
-        }, timeout);
+        });
+    }
 
-        for (int i = 0; i < replicationFactor; i++) {
-            new Thread(() -> {
-                try {
-                    // Wait for REMOVE_ACK from Dstore
-                    // ...
-                    latch.countDown();
-                } catch (Exception e) {
-                    System.err.println("Error waiting for REMOVE_ACK: " + e.getMessage());
-                    e.printStackTrace();
+    private void handleRemoveAck(String[] parts) {
+        if (parts.length != 2) {
+            System.out.println("Invalid remove ack: " + Arrays.toString(parts));
+            return;
+        }
+
+        acknowledgeRemove(parts[1]);
+    }
+
+    private void acknowledgeRemove(String filename) {
+        PendingAcks pending = pendingRemoveAcks.get(filename);
+        if (pending == null) {
+            System.out.println("Ignoring late REMOVE_ACK for file: " + filename);
+            return;
+        }
+
+        pending.latch.countDown();
+        if (pending.latch.getCount() == 0 && pendingRemoveAcks.remove(filename, pending)) {
+            pending.timeout.cancel();
+            forgetFile(filename);
+            System.out.println("Remove operation completed for file: " + filename);
+        }
+    }
+
+    private static class PendingAcks {
+        private final CountDownLatch latch;
+        private volatile TimingWheel.Timeout timeout;
+
+        PendingAcks(int expectedAcks) {
+            this.latch = new CountDownLatch(expectedAcks);
+        }
+    }
+
+    // Hashed timing wheel shared by all ack timeouts. Scheduling and cancelling are O(1); a single
+    // daemon thread advances one slot per tick and hands the expired tasks of that slot to the executor
+    // in order, since a task may block writing an error reply and would otherwise delay every other timeout.
+    private static class TimingWheel {
+        private final long tickNanos;
+        private final long startTime;
+        private final Deque<Timeout>[] slots;
+        private final int mask;
+        private final Queue<Timeout> newTimeouts;
+        private final Executor executor;
+        private long tick;
+
+        static class Timeout {
+            private final long deadline;
+            private final Runnable task;
+            private long remainingRounds;
+            private volatile boolean cancelled;
+
+            Timeout(long deadline, Runnable task) {
+                this.deadline = deadline;
+                this.task = task;
+            }
+
+            void cancel() {
+                cancelled = true;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        TimingWheel(long tickMillis, int slotCount, Executor executor) {
+            int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+            this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+            this.executor = executor;
+            this.slots = (Deque<Timeout>[]) new Deque<?>[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = new ArrayDeque<>();
+            }
+            this.mask = size - 1;
+            this.newTimeouts = new ConcurrentLinkedQueue<>();
+            this.startTime = System.nanoTime();
+
+            Thread worker = new Thread(this::run, "timing-wheel");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        Timeout schedule(long delayMillis, Runnable task) {
+            Timeout timeout = new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task);
+            newTimeouts.add(timeout);
+            return timeout;
+        }
+
+        private void run() {
+            while (true) {
+                long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+                if (sleepNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                // Move newly scheduled timeouts into their slots
+                Timeout timeout;
+                while ((timeout = newTimeouts.poll()) != null) {
+                    if (timeout.cancelled) {
+                        continue;
+                    }
+                    long targetTick = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos, tick);
+                    timeout.remainingRounds = (targetTick - tick) / slots.length;
+                    slots[(int) (targetTick & mask)].add(timeout);
+                }
+
+                // Expire the current slot
+                Iterator<Timeout> iterator = slots[(int) (tick & mask)].iterator();
+                while (iterator.hasNext()) {
+                    Timeout current = iterator.next();
+                    if (current.cancelled) {
+                        iterator.remove();
+                    } else if (current.remainingRounds > 0) {
+                        current.remainingRounds--;
+                    } else {
+                        iterator.remove();
+                        executor.execute(() -> {
+                            // A cancel that arrives after the hand-off still takes effect
+                            if (current.cancelled) {
+                                return;
+                            }
+                            try {
+                                current.task.run();
+                            } catch (RuntimeException e) {
+                                System.err.println("Error running timeout task: " + e.getMessage());
+                                e.printStackTrace();
+                            }
+                        });
+                    }
                 }
-            }).start();
+                tick++;
+            }
         }
     }
 
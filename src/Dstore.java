@@ -1,6 +1,30 @@
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Dstore {
     private int port;
@@ -10,12 +34,64 @@ public class Dstore {
     private Socket controllerSocket;
     private PrintWriter controllerOut;
     private BufferedReader controllerIn;
+    private final ExecutorService executor;
+    private final ExecutorService connectionExecutor;
+    private final int transfersPerTarget;
+    private final Map<Integer, Semaphore> targetTransfers;
+    private final BandwidthLimiter rebalanceBandwidth;
+    private FileIngest fileIngest;
+    private final ReadCache readCache;
+    private final MappedFileCache mappedFiles;
 
     public Dstore(int port, int cport, int timeout, String fileFolder) {
         this.port = port;
         this.cport = cport;
         this.timeout = timeout;
         this.fileFolder = fileFolder;
+        this.executor = createExecutor();
+        this.connectionExecutor = createConnectionExecutor(executor);
+        this.transfersPerTarget = Integer.getInteger("dfs.rebalance.perTarget", 2);
+        this.targetTransfers = new ConcurrentHashMap<>();
+        this.rebalanceBandwidth = new BandwidthLimiter(Long.getLong("dfs.rebalance.bandwidth", 0));
+        this.mappedFiles = "mmap".equals(System.getProperty("dfs.read"))
+                ? new MappedFileCache(Integer.getInteger("dfs.mmap.handles", 256))
+                : null;
+        // The read cache is checked first and would serve the small, hot files mmap mode is meant for,
+        // so mmap mode turns it off
+        this.readCache = new ReadCache(mappedFiles != null ? 0 : Long.getLong("dfs.cache.size", 64L << 20),
+                Long.getLong("dfs.cache.maxFile", 4L << 20));
+    }
+
+    private static ExecutorService createExecutor() {
+        String mode = System.getProperty("dfs.exec", "platform");
+        switch (mode) {
+            case "bounded":
+                int threads = Integer.getInteger("dfs.exec.threads", 256);
+                System.out.println("Using a bounded pool of " + threads + " threads");
+                return Executors.newFixedThreadPool(threads);
+            case "virtual":
+                try {
+                    // Looked up reflectively so this still compiles on JDKs without virtual threads
+                    ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    System.out.println("Using virtual threads");
+                    return executor;
+                } catch (ReflectiveOperationException e) {
+                    System.err.println("Virtual threads are not available, falling back to platform threads");
+                }
+                return Executors.newCachedThreadPool();
+            default:
+                return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Connection handlers block reading their socket for as long as it stays open, so in bounded mode they
+    // get threads of their own; otherwise that many idle connections would leave no thread for the tasks
+    // queued behind them
+    private static ExecutorService createConnectionExecutor(ExecutorService executor) {
+        if ("bounded".equals(System.getProperty("dfs.exec", "platform"))) {
+            return Executors.newCachedThreadPool();
+        }
+        return executor;
     }
 
     public void start() {
@@ -24,15 +100,33 @@ public class Dstore {
             controllerOut = new PrintWriter(controllerSocket.getOutputStream(), true);
             controllerIn = new BufferedReader(new InputStreamReader(controllerSocket.getInputStream()));
 
-            controllerOut.println(Protocol.JOIN_TOKEN + " " + port);
+            File folder = new File(fileFolder);
+            if (!folder.exists() && !folder.mkdirs()) {
+                System.err.println("Failed to create file folder: " + folder.getAbsolutePath());
+            }
+            fileIngest = new FileIngest(folder, Integer.getInteger("dfs.ingest.buffers", 32),
+                    Integer.getInteger("dfs.ingest.bufferSize", 64 * 1024), timeout);
+            controllerOut.println(Protocol.JOIN_TOKEN + " " + port + " " + folder.getUsableSpace());
+
+            Thread controllerListener = new Thread(this::listenToController, "ControllerListener");
+            controllerListener.setDaemon(true);
+            controllerListener.start();
 
-            ServerSocket serverSocket = new ServerSocket(port);
+            if (readCache.isEnabled()) {
+                Thread cacheReporter = new Thread(this::reportCache, "CacheReporter");
+                cacheReporter.setDaemon(true);
+                cacheReporter.start();
+            }
+
+            // Client sockets are accepted through a channel so that loads can be served with transferTo
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
             System.out.println("Dstore started on port " + port);
 
             while (true) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    new Thread(new ClientHandler(clientSocket)).start();
+                    Socket clientSocket = serverChannel.accept().socket();
+                    connectionExecutor.execute(new ClientHandler(clientSocket));
                 } catch (IOException e) {
                     System.err.println("Error accepting client connection: " + e.getMessage());
                     e.printStackTrace();
@@ -60,36 +154,47 @@ public class Dstore {
             try {
                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
                 PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                InputStream inputStream = clientSocket.getInputStream();
-                OutputStream outputStream = clientSocket.getOutputStream();
 
-                String request = in.readLine();
-                if (request == null) {
-                    System.out.println("Empty request received from client");
-                    return;
-                }
+                // Control messages, which the Controller sends down the one connection it keeps to this port,
+                // leave the connection open for the next; a request that moves file data ends it, as before
+                String request;
+                while ((request = in.readLine()) != null) {
+                    String[] parts = request.split(" ");
+                    String command = parts[0];
 
-                String[] parts = request.split(" ");
-                String command = parts[0];
-
-                switch (command) {
-                    case Protocol.STORE_TOKEN:
-                        handleStoreRequest(parts, out, inputStream);
-                        break;
-                    case Protocol.LOAD_DATA_TOKEN:
-                        handleLoadDataRequest(parts, outputStream);
-                        break;
-                    case Protocol.REMOVE_TOKEN:
-                        handleRemoveRequest(parts);
-                        break;
-                    case Protocol.LIST_TOKEN:
-                        handleListRequest(out);
-                        break;
-                    case Protocol.REBALANCE_STORE_TOKEN:
-                        handleRebalanceStoreRequest(parts, out, inputStream);
-                        break;
-                    default:
-                        System.out.println("Unknown command: " + command);
+                    switch (command) {
+                        case Protocol.STORE_TOKEN:
+                            handleStoreRequest(parts, out);
+                            return;
+                        case Protocol.LOAD_DATA_TOKEN:
+                            handleLoadDataRequest(parts);
+                            return;
+                        case Protocol.REBALANCE_STORE_TOKEN:
+                            handleRebalanceStoreRequest(parts, out);
+                            return;
+                        case Protocol.STORE_BATCH_TOKEN:
+                            handleStoreBatchRequest(parts, out);
+                            return;
+                        case Protocol.LOAD_DATA_BATCH_TOKEN:
+                            handleLoadDataBatchRequest(parts, out);
+                            return;
+                        case Protocol.REMOVE_TOKEN:
+                            handleRemoveRequest(parts);
+                            break;
+                        case Protocol.LIST_TOKEN:
+                            handleListRequest(out);
+                            break;
+                        case Protocol.REMOVE_BATCH_TOKEN:
+                            removeFiles(parts);
+                            break;
+                        case Protocol.REBALANCE_TOKEN:
+                            // Run off this loop so REMOVEs keep flowing mid-rebalance; REBALANCE_COMPLETE goes
+                            // back on this connection, which is the one the Controller is waiting on
+                            executor.execute(() -> handleRebalance(parts, out));
+                            break;
+                        default:
+                            System.out.println("Unknown command: " + command);
+                    }
                 }
             } catch (IOException e) {
                 System.err.println("Error handling client request: " + e.getMessage());
@@ -105,22 +210,30 @@ public class Dstore {
             }
         }
 
-        private void handleStoreRequest(String[] parts, PrintWriter out, InputStream inputStream) {
-            if (parts.length != 3) {
+        // STORE filename filesize [port...]: any ports are the rest of a replication chain. The file is
+        // forwarded to the next of them as it arrives, so the client only uploads it once, and every
+        // Dstore in the chain acknowledges its own copy to the Controller.
+        private void handleStoreRequest(String[] parts, PrintWriter out) {
+            if (parts.length < 3) {
                 System.out.println("Invalid store request: " + Arrays.toString(parts));
                 return;
             }
 
             String filename = parts[1];
-            int filesize = Integer.parseInt(parts[2]);
+            long filesize = Long.parseLong(parts[2]);
+            SocketChannel downstream = parts.length > 3 ? openChain(filename, filesize, parts) : null;
 
             out.println(Protocol.ACK_TOKEN);
 
             try {
-                byte[] fileData = inputStream.readNBytes(filesize);
-                FileOutputStream fileOutputStream = new FileOutputStream(fileFolder + File.separator + filename);
-                fileOutputStream.write(fileData);
-                fileOutputStream.close();
+                try {
+                    fileIngest.store(filename, filesize, clientSocket, downstream);
+                    invalidateCached(filename);
+                } finally {
+                    if (downstream != null) {
+                        downstream.close();
+                    }
+                }
 
                 controllerOut.println(Protocol.STORE_ACK_TOKEN + " " + filename);
                 System.out.println("Stored file: " + filename);
@@ -130,11 +243,124 @@ public class Dstore {
             }
         }
 
-        private void handleLoadDataRequest(String[] parts, OutputStream outputStream) {
-            if (parts.length != 2) {
+        // Connects to the next Dstore in the chain and passes on the rest of it. Returns null if that
+        // Dstore cannot be reached, which ends the chain here; the Controller then times out the
+        // replicas that were never stored.
+        private SocketChannel openChain(String filename, long filesize, String[] parts) {
+            int nextPort = Integer.parseInt(parts[3]);
+            StringBuilder request = new StringBuilder(Protocol.STORE_TOKEN).append(" ").append(filename).append(" ").append(filesize);
+            for (int i = 4; i < parts.length; i++) {
+                request.append(" ").append(parts[i]);
+            }
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open(new InetSocketAddress("localhost", nextPort));
+                Socket socket = channel.socket();
+                socket.setSoTimeout(timeout);
+                PrintWriter nextOut = new PrintWriter(socket.getOutputStream(), true);
+                BufferedReader nextIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                nextOut.println(request);
+                String response = nextIn.readLine();
+                if (!Protocol.ACK_TOKEN.equals(response)) {
+                    throw new IOException("Unexpected response: " + response);
+                }
+                System.out.println("Chained " + filename + " to Dstore " + nextPort);
+                return channel;
+            } catch (IOException e) {
+                System.err.println("Error chaining " + filename + " to Dstore " + nextPort + ": " + e.getMessage());
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException closeError) {
+                        closeError.printStackTrace();
+                    }
+                }
+                return null;
+            }
+        }
+
+        // STORE_BATCH count (filename filesize)*: after the ACK the files arrive back to back on
+        // this connection, delimited only by their sizes
+        private void handleStoreBatchRequest(String[] parts, PrintWriter out) {
+            int count = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+            if (count < 0 || parts.length != 2 + 2 * count) {
+                System.out.println("Invalid store batch request: " + String.join(" ", parts));
+                return;
+            }
+
+            out.println(Protocol.ACK_TOKEN);
+
+            List<String> stored = new ArrayList<>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    String filename = parts[2 + 2 * i];
+                    long filesize = Long.parseLong(parts[3 + 2 * i]);
+                    fileIngest.store(filename, filesize, clientSocket);
+                    invalidateCached(filename);
+                    stored.add(filename);
+                }
+                System.out.println("Stored batch of " + count + " files");
+            } catch (IOException e) {
+                System.err.println("Error storing batch after " + stored.size() + " of " + count + " files: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                if (!stored.isEmpty()) {
+                    controllerOut.println(Protocol.STORE_ACK_BATCH_TOKEN + " " + stored.size() + " " + String.join(" ", stored));
+                }
+            }
+        }
+
+        // LOAD_DATA_BATCH count filename*: replies with each file's size, -1 if missing, then the
+        // contents of the files that exist in the same order
+        private void handleLoadDataBatchRequest(String[] parts, PrintWriter out) {
+            int count = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+            if (count < 0 || parts.length != 2 + count) {
+                System.out.println("Invalid load data batch request: " + String.join(" ", parts));
+                return;
+            }
+
+            File[] files = new File[count];
+            long[] sizes = new long[count];
+            StringBuilder header = new StringBuilder(Protocol.LOAD_DATA_BATCH_TOKEN).append(" ").append(count);
+            for (int i = 0; i < count; i++) {
+                File file = new File(fileFolder + File.separator + parts[2 + i]);
+                files[i] = file.isFile() ? file : null;
+                sizes[i] = files[i] == null ? -1 : file.length();
+                header.append(" ").append(parts[2 + i]).append(" ").append(sizes[i]);
+            }
+            out.println(header.toString());
+
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (files[i] == null) {
+                        continue;
+                    }
+                    sendFile(files[i], 0, sizes[i], clientSocket);
+                }
+                System.out.println("Loaded batch of " + count + " files");
+            } catch (IOException e) {
+                System.err.println("Error loading batch: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        // LOAD_DATA filename [offset [length]]: only that range of the file is sent, clipped to its size
+        private void handleLoadDataRequest(String[] parts) {
+            if (parts.length < 2 || parts.length > 4) {
                 System.out.println("Invalid load data request: " + Arrays.toString(parts));
                 return;
             }
+            long offset, length;
+            try {
+                offset = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+                length = parts.length > 3 ? Long.parseLong(parts[3]) : Long.MAX_VALUE;
+            } catch (NumberFormatException e) {
+                offset = length = -1;
+            }
+            if (offset < 0 || length < 0) {
+                System.out.println("Invalid load data range: " + Arrays.toString(parts));
+                return;
+            }
 
             String filename = parts[1];
             File file = new File(fileFolder + File.separator + filename);
@@ -151,10 +377,8 @@ public class Dstore {
             }
 
             try {
-                FileInputStream fileInputStream = new FileInputStream(file);
-                byte[] fileData = fileInputStream.readAllBytes();
-                outputStream.write(fileData);
-                fileInputStream.close();
+                long start = Math.min(offset, file.length());
+                sendFile(file, start, Math.min(length, file.length() - start), clientSocket);
                 System.out.println("Loaded file: " + filename);
             } catch (IOException e) {
                 System.err.println("Error loading file " + filename + ": " + e.getMessage());
@@ -163,68 +387,716 @@ public class Dstore {
         }
 
         private void handleRemoveRequest(String[] parts) {
-            if (parts.length != 2) {
-                System.out.println("Invalid remove request: " + Arrays.toString(parts));
+            removeFile(parts);
+        }
+
+        private void handleListRequest(PrintWriter out) {
+            out.println(listFiles());
+            System.out.println("Sent file list to client");
+        }
+
+        private void handleRebalanceStoreRequest(String[] parts, PrintWriter out) {
+            if (parts.length != 3) {
+                System.out.println("Invalid rebalance store request: " + Arrays.toString(parts));
                 return;
             }
 
             String filename = parts[1];
-            File file = new File(fileFolder + File.separator + filename);
+            long filesize = Long.parseLong(parts[2]);
+
+            out.println(Protocol.ACK_TOKEN);
+
+            try {
+                fileIngest.store(filename, filesize, clientSocket);
+                invalidateCached(filename);
+                System.out.println("Stored file during rebalance: " + filename);
+            } catch (IOException e) {
+                System.err.println("Error storing file during rebalance " + filename + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
 
-            if (file.exists()) {
-                if (file.delete()) {
-                    controllerOut.println(Protocol.REMOVE_ACK_TOKEN + " " + filename);
-                    System.out.println("Removed file: " + filename);
-                } else {
-                    System.err.println("Failed to remove file: " + filename);
+    private void listenToController() {
+        try {
+            String message;
+            while ((message = controllerIn.readLine()) != null) {
+                String[] parts = message.split(" ");
+                switch (parts[0]) {
+                    case Protocol.LIST_TOKEN:
+                        controllerOut.println(listFiles());
+                        break;
+                    case Protocol.REMOVE_TOKEN:
+                        removeFile(parts);
+                        break;
+                    case Protocol.REMOVE_BATCH_TOKEN:
+                        removeFiles(parts);
+                        break;
+                    case Protocol.REBALANCE_TOKEN:
+                        // Run off the listener so the Controller can still be answered mid-rebalance
+                        executor.execute(() -> handleRebalance(parts, controllerOut));
+                        break;
+                    default:
+                        System.out.println("Unknown command from Controller: " + message);
                 }
+            }
+            System.out.println("Controller closed the connection");
+        } catch (IOException e) {
+            System.err.println("Error reading from Controller: " + e.getMessage());
+        }
+    }
+
+    private void removeFile(String[] parts) {
+        if (parts.length != 2) {
+            System.out.println("Invalid remove request: " + Arrays.toString(parts));
+            return;
+        }
+
+        String filename = parts[1];
+        File file = new File(fileFolder + File.separator + filename);
+        invalidateCached(filename);
+
+        if (file.exists()) {
+            if (file.delete()) {
+                controllerOut.println(Protocol.REMOVE_ACK_TOKEN + " " + filename);
+                System.out.println("Removed file: " + filename);
             } else {
-                controllerOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename);
-                System.out.println("File does not exist: " + filename);
+                System.err.println("Failed to remove file: " + filename);
             }
+        } else {
+            controllerOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename);
+            System.out.println("File does not exist: " + filename);
         }
+    }
 
-        private void handleListRequest(PrintWriter out) {
-            File folder = new File(fileFolder);
-            File[] files = folder.listFiles();
+    // REMOVE_BATCH count filename*: acknowledged with one REMOVE_ACK_BATCH; a file that is already
+    // gone counts as removed
+    private void removeFiles(String[] parts) {
+        int count = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+        if (count < 0 || parts.length != 2 + count) {
+            System.out.println("Invalid remove batch request: " + String.join(" ", parts));
+            return;
+        }
+
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File file = new File(fileFolder + File.separator + parts[2 + i]);
+            invalidateCached(parts[2 + i]);
+            if (file.delete() || !file.exists()) {
+                removed.add(parts[2 + i]);
+            } else {
+                System.err.println("Failed to remove file: " + parts[2 + i]);
+            }
+        }
+        controllerOut.println(Protocol.REMOVE_ACK_BATCH_TOKEN + " " + removed.size() + " " + String.join(" ", removed));
+        System.out.println("Removed batch of " + removed.size() + " files");
+    }
+
+    // A store has replaced the file or it has been deleted, so no cached copy or mapping of the old
+    // contents may be served after this
+    private void invalidateCached(String filename) {
+        readCache.invalidate(filename);
+        if (mappedFiles != null) {
+            mappedFiles.invalidate(filename);
+        }
+    }
+
+    // Sends size bytes of the file from offset, from the read cache when the file is small enough to be
+    // held there (never in mmap mode, which turns the cache off), from a mapping of it in mmap mode, and
+    // otherwise with FileChannel.transferTo. When the socket has a channel the OS can copy
+    // straight from the page cache to the socket, without the data passing through the heap.
+    private void sendFile(File file, long offset, long size, Socket socket) throws IOException {
+        WritableByteChannel target = socket.getChannel() != null
+                ? socket.getChannel()
+                : Channels.newChannel(socket.getOutputStream());
+        ByteBuffer cached = readCache.isEnabled() ? readCache.get(file) : null;
+        if (cached != null) {
+            if (offset + size > cached.limit()) {
+                throw new EOFException((offset + size - cached.limit()) + " bytes short");
+            }
+            cached.limit((int) (offset + size)).position((int) offset);
+            while (cached.hasRemaining()) {
+                target.write(cached);
+            }
+            readCache.recordServed(size);
+            return;
+        }
+        MappedFileCache.Mapping mapping = mappedFiles != null ? mappedFiles.acquire(file) : null;
+        if (mapping != null) {
+            try {
+                ByteBuffer mapped = mapping.buffer.duplicate();
+                if (offset + size > mapped.limit()) {
+                    throw new EOFException((offset + size - mapped.limit()) + " bytes short");
+                }
+                mapped.limit((int) (offset + size)).position((int) offset);
+                while (mapped.hasRemaining()) {
+                    target.write(mapped);
+                }
+            } finally {
+                mappedFiles.release(mapping);
+            }
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = offset;
+            long end = offset + size;
+            while (position < end) {
+                long sent = fileChannel.transferTo(position, end - position, target);
+                if (sent == 0 && position >= fileChannel.size()) {
+                    throw new EOFException((end - position) + " bytes short");
+                }
+                position += sent;
+            }
+        }
+    }
+
+    // Prints the read cache counters every ten seconds while they are changing
+    private void reportCache() {
+        try {
+            while (true) {
+                Thread.sleep(10_000);
+                if (readCache.hasChanged()) {
+                    System.out.println("Read cache: " + readCache);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            StringBuilder response = new StringBuilder(Protocol.LIST_TOKEN);
-            if (files != null) {
-                for (File file : files) {
+    private String listFiles() {
+        File folder = new File(fileFolder);
+        File[] files = folder.listFiles();
+
+        StringBuilder response = new StringBuilder(Protocol.LIST_TOKEN);
+        if (files != null) {
+            for (File file : files) {
+                // Skips the folder holding uploads still in progress
+                if (file.isFile()) {
                     response.append(" ").append(file.getName());
                 }
             }
+        }
+        return response.toString();
+    }
 
-            out.println(response.toString());
-            System.out.println("Sent file list to client");
+    // Answers with REBALANCE_COMPLETE on replyOut, the connection the instructions came in on
+    private void handleRebalance(String[] parts, PrintWriter replyOut) {
+        Map<String, List<Integer>> filesToSend = new LinkedHashMap<>();
+        List<String> filesToRemove = new ArrayList<>();
+        try {
+            int index = 1;
+            int sendCount = Integer.parseInt(parts[index++]);
+            for (int i = 0; i < sendCount; i++) {
+                String filename = parts[index++];
+                int portCount = Integer.parseInt(parts[index++]);
+                List<Integer> ports = new ArrayList<>();
+                for (int j = 0; j < portCount; j++) {
+                    ports.add(Integer.parseInt(parts[index++]));
+                }
+                filesToSend.put(filename, ports);
+            }
+            int removeCount = Integer.parseInt(parts[index++]);
+            for (int i = 0; i < removeCount; i++) {
+                filesToRemove.add(parts[index++]);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Invalid rebalance request: " + String.join(" ", parts));
+            return;
         }
 
-        private void handleRebalanceStoreRequest(String[] parts, PrintWriter out, InputStream inputStream) {
-            if (parts.length != 3) {
-                System.out.println("Invalid rebalance store request: " + Arrays.toString(parts));
+        Set<String> failed = new RebalanceMover(filesToSend).run();
+
+        for (String filename : filesToRemove) {
+            // Keep any copy that did not reach its new Dstore
+            if (failed.contains(filename)) {
+                continue;
+            }
+            File file = new File(fileFolder + File.separator + filename);
+            invalidateCached(filename);
+            if (!file.delete()) {
+                System.err.println("Failed to remove file during rebalance: " + filename);
+            }
+        }
+
+        sendRebalanceComplete(replyOut, failed);
+    }
+
+    // Sends the files named in one REBALANCE message to their new Dstores. Transfers run in
+    // parallel, at most transfersPerTarget at a time to any one Dstore, and all of them share
+    // rebalanceBandwidth so client LOADs from this Dstore are not starved.
+    private class RebalanceMover {
+        private final Map<String, List<Integer>> filesToSend;
+        private final Set<String> failed;
+        private final AtomicLong bytesSent;
+        private final long totalBytes;
+
+        public RebalanceMover(Map<String, List<Integer>> filesToSend) {
+            this.filesToSend = filesToSend;
+            this.failed = ConcurrentHashMap.newKeySet();
+            this.bytesSent = new AtomicLong();
+            long total = 0;
+            for (Map.Entry<String, List<Integer>> entry : filesToSend.entrySet()) {
+                total += new File(fileFolder + File.separator + entry.getKey()).length() * entry.getValue().size();
+            }
+            this.totalBytes = total;
+        }
+
+        // Returns the files that did not reach every Dstore they were sent to
+        public Set<String> run() {
+            int transfers = 0;
+            for (List<Integer> ports : filesToSend.values()) {
+                transfers += ports.size();
+            }
+            CountDownLatch latch = new CountDownLatch(transfers);
+            long startTime = System.nanoTime();
+
+            for (Map.Entry<String, List<Integer>> entry : filesToSend.entrySet()) {
+                for (int targetPort : entry.getValue()) {
+                    executor.execute(() -> {
+                        Semaphore slots = targetTransfers.computeIfAbsent(targetPort, p -> new Semaphore(transfersPerTarget));
+                        try {
+                            slots.acquire();
+                            try {
+                                transfer(entry.getKey(), targetPort);
+                            } finally {
+                                slots.release();
+                            }
+                        } catch (IOException | InterruptedException e) {
+                            System.err.println("Error sending " + entry.getKey() + " to Dstore " + targetPort + " during rebalance: " + e.getMessage());
+                            failed.add(entry.getKey());
+                        } finally {
+                            latch.countDown();
+                        }
+                    });
+                }
+            }
+
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                System.err.println("Interrupted while waiting for rebalance transfers: " + e.getMessage());
+                failed.addAll(filesToSend.keySet());
+                Thread.currentThread().interrupt();
+            }
+
+            long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            System.out.println("Rebalance sent " + bytesSent.get() + " bytes in " + elapsedMillis + " ms ("
+                    + bytesSent.get() * 1000 / elapsedMillis + " bytes/s), " + failed.size() + " files failed");
+            return failed;
+        }
+
+        private void transfer(String filename, int targetPort) throws IOException, InterruptedException {
+            File file = new File(fileFolder + File.separator + filename);
+            try (Socket socket = new Socket("localhost", targetPort);
+                 InputStream fileIn = new FileInputStream(file)) {
+                socket.setSoTimeout(timeout);
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+                out.println(Protocol.REBALANCE_STORE_TOKEN + " " + filename + " " + file.length());
+                String response = in.readLine();
+                if (!Protocol.ACK_TOKEN.equals(response)) {
+                    throw new IOException("expected " + Protocol.ACK_TOKEN + " but got " + response);
+                }
+
+                OutputStream outputStream = socket.getOutputStream();
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = fileIn.read(buffer)) > 0) {
+                    rebalanceBandwidth.acquire(read);
+                    outputStream.write(buffer, 0, read);
+                    long sent = bytesSent.addAndGet(read);
+                    // Report roughly every tenth of the way through
+                    if (totalBytes > 0 && sent * 10 / totalBytes != (sent - read) * 10 / totalBytes) {
+                        System.out.println("Rebalance progress: " + sent + "/" + totalBytes + " bytes");
+                    }
+                }
+                outputStream.flush();
+            }
+        }
+    }
+
+    // Paces rebalance transfers to a bytes per second budget; a budget of 0 or less disables pacing
+    private static class BandwidthLimiter {
+        private final long bytesPerSecond;
+        private long nextFreeNanos;
+
+        public BandwidthLimiter(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public void acquire(int bytes) throws InterruptedException {
+            if (bytesPerSecond <= 0) {
                 return;
             }
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(nextFreeNanos, now);
+                nextFreeNanos = start + bytes * 1_000_000_000L / bytesPerSecond;
+                waitNanos = start - now;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
 
-            String filename = parts[1];
-            int filesize = Integer.parseInt(parts[2]);
+    // Streams uploads to disk through a fixed pool of direct buffers, so each upload holds a single buffer
+    // regardless of the file size and the pool bounds the memory used for ingest overall. Every file is
+    // written to a temp file sized up front, has to deliver exactly its declared size, and is only then
+    // renamed over the target, so readers never see a partial file. An upload heading a replication chain
+    // is passed on to the next Dstore chunk by chunk as it arrives.
+    private static class FileIngest {
+        private final File folder;
+        private final File incomingFolder;
+        private final BlockingQueue<ByteBuffer> buffers;
+        private final AtomicLong sequence = new AtomicLong();
+        // Closes the socket of an upload whose read stalls, since reads on a channel ignore SO_TIMEOUT
+        // and a stalled upload would otherwise hold its buffer, and so block every STORE behind it, forever
+        private final long stallTimeout;
+        private final ScheduledThreadPoolExecutor stallGuard;
 
-            out.println(Protocol.ACK_TOKEN);
+        public FileIngest(File folder, int bufferCount, int bufferSize, long stallTimeout) throws IOException {
+            this.folder = folder;
+            this.stallTimeout = stallTimeout;
+            this.stallGuard = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "IngestStallGuard");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Nearly every read completes in time, so cancelled deadlines must not pile up in the queue
+            stallGuard.setRemoveOnCancelPolicy(true);
+            this.incomingFolder = new File(folder, ".incoming");
+            if (!incomingFolder.isDirectory() && !incomingFolder.mkdirs()) {
+                throw new IOException("Failed to create folder: " + incomingFolder.getAbsolutePath());
+            }
+            // Anything left over was cut off by a crash
+            File[] leftovers = incomingFolder.listFiles();
+            if (leftovers != null) {
+                for (File file : leftovers) {
+                    file.delete();
+                }
+            }
+            this.buffers = new ArrayBlockingQueue<>(bufferCount);
+            for (int i = 0; i < bufferCount; i++) {
+                buffers.add(ByteBuffer.allocateDirect(bufferSize));
+            }
+        }
 
+        public void store(String filename, long size, Socket socket) throws IOException {
+            store(filename, size, socket, null);
+        }
+
+        // Also writes each chunk to downstream, when given, before storing it locally. A write to downstream
+        // that stalls for stallTimeout closes it and drops the rest of the chain, as a stalled read does.
+        public void store(String filename, long size, Socket socket, WritableByteChannel downstream) throws IOException {
+            if (folder.getUsableSpace() < size) {
+                throw new IOException("Not enough space for " + size + " bytes of " + filename);
+            }
+            ReadableByteChannel source = socket.getChannel() != null
+                    ? socket.getChannel()
+                    : Channels.newChannel(socket.getInputStream());
+            File tempFile = new File(incomingFolder, Long.toString(sequence.incrementAndGet()));
+            ByteBuffer buffer;
             try {
-                byte[] fileData = inputStream.readNBytes(filesize);
-                FileOutputStream fileOutputStream = new FileOutputStream(fileFolder + File.separator + filename);
-                fileOutputStream.write(fileData);
-                fileOutputStream.close();
-                System.out.println("Stored file during rebalance: " + filename);
+                buffer = buffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for an ingest buffer");
+            }
+            boolean stored = false;
+            try {
+                try (RandomAccessFile file = new RandomAccessFile(tempFile, "rw")) {
+                    file.setLength(size);
+                    FileChannel channel = file.getChannel();
+                    long position = 0;
+                    while (position < size) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                        ScheduledFuture<?> deadline = stallTimeout > 0
+                                ? stallGuard.schedule(() -> closeStalled(socket, filename), stallTimeout, TimeUnit.MILLISECONDS)
+                                : null;
+                        int read;
+                        try {
+                            read = source.read(buffer);
+                        } finally {
+                            if (deadline != null) {
+                                deadline.cancel(false);
+                            }
+                        }
+                        if (read < 0) {
+                            throw new EOFException((size - position) + " bytes short of " + filename);
+                        }
+                        buffer.flip();
+                        if (downstream != null) {
+                            WritableByteChannel next = downstream;
+                            ScheduledFuture<?> forwardDeadline = stallTimeout > 0
+                                    ? stallGuard.schedule(() -> closeStalledForward(next, filename), stallTimeout, TimeUnit.MILLISECONDS)
+                                    : null;
+                            try {
+                                ByteBuffer forward = buffer.duplicate();
+                                while (forward.hasRemaining()) {
+                                    downstream.write(forward);
+                                }
+                            } catch (IOException e) {
+                                // The rest of the chain times out at the Controller; this copy still completes
+                                System.err.println("Error forwarding " + filename + ": " + e.getMessage());
+                                downstream = null;
+                            } finally {
+                                if (forwardDeadline != null) {
+                                    forwardDeadline.cancel(false);
+                                }
+                            }
+                        }
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                    }
+                }
+                Files.move(tempFile.toPath(), new File(folder, filename).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                stored = true;
+            } finally {
+                buffers.add(buffer);
+                if (!stored) {
+                    tempFile.delete();
+                }
+            }
+        }
+
+        private static void closeStalled(Socket socket, String filename) {
+            System.err.println("Upload of " + filename + " stalled, closing connection");
+            try {
+                socket.close();
             } catch (IOException e) {
-                System.err.println("Error storing file during rebalance " + filename + ": " + e.getMessage());
-                e.printStackTrace();
+                System.err.println("Error closing stalled upload: " + e.getMessage());
+            }
+        }
+
+        private static void closeStalledForward(WritableByteChannel downstream, String filename) {
+            System.err.println("Forwarding of " + filename + " stalled, dropping the rest of the chain");
+            try {
+                downstream.close();
+            } catch (IOException e) {
+                System.err.println("Error closing stalled forward: " + e.getMessage());
+            }
+        }
+    }
+
+    // Keeps the contents of recently loaded files in direct buffers, evicting the least recently used once
+    // they hold more than capacity bytes, so a popular file is sent from memory instead of being read from
+    // disk on every LOAD_DATA. Files larger than maxFileSize are never cached. Every store over a file and
+    // every delete must invalidate it; a generation counter stops a load that read the file before the
+    // change from caching the old contents afterwards.
+    private static class ReadCache {
+        private final long capacity;
+        private final long maxFileSize;
+        private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+        private long generation;
+        private long lastReported = -1;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong bytesServed = new AtomicLong();
+
+        public ReadCache(long capacity, long maxFileSize) {
+            this.capacity = capacity;
+            this.maxFileSize = Math.min(maxFileSize, Math.min(capacity, Integer.MAX_VALUE));
+        }
+
+        public boolean isEnabled() {
+            return capacity > 0;
+        }
+
+        // Returns the contents of the file in a buffer the caller may consume, or null if it is too large
+        public ByteBuffer get(File file) throws IOException {
+            // Checked up front as well, so files that can never be cached do not count as misses
+            if (file.length() > maxFileSize) {
+                return null;
+            }
+            String filename = file.getName();
+            long startGeneration;
+            synchronized (this) {
+                ByteBuffer cached = entries.get(filename);
+                if (cached != null) {
+                    hits.incrementAndGet();
+                    return cached.duplicate();
+                }
+                startGeneration = generation;
+            }
+            misses.incrementAndGet();
+            ByteBuffer contents;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long fileSize = channel.size();
+                if (fileSize > maxFileSize) {
+                    return null;
+                }
+                contents = ByteBuffer.allocateDirect((int) fileSize);
+                while (contents.hasRemaining() && channel.read(contents) >= 0) {
+                    // keep reading until the buffer is full or the file ends
+                }
+                contents.flip();
+            }
+            synchronized (this) {
+                if (startGeneration == generation && !entries.containsKey(filename)) {
+                    entries.put(filename, contents);
+                    size += contents.capacity();
+                    Iterator<ByteBuffer> eldest = entries.values().iterator();
+                    while (size > capacity && eldest.hasNext()) {
+                        size -= eldest.next().capacity();
+                        eldest.remove();
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+            return contents.duplicate();
+        }
+
+        public synchronized void invalidate(String filename) {
+            generation++;
+            ByteBuffer removed = entries.remove(filename);
+            if (removed != null) {
+                size -= removed.capacity();
+            }
+        }
+
+        public void recordServed(long bytes) {
+            bytesServed.addAndGet(bytes);
+        }
+
+        public synchronized boolean hasChanged() {
+            long lookups = hits.get() + misses.get();
+            if (lookups == lastReported) {
+                return false;
+            }
+            lastReported = lookups;
+            return true;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long hitCount = hits.get();
+            long lookups = hitCount + misses.get();
+            return "hits " + hitCount + "/" + lookups + " (" + (lookups == 0 ? 0 : hitCount * 100 / lookups) + "%), "
+                    + evictions.get() + " evictions, " + bytesServed.get() + " bytes served, "
+                    + entries.size() + " files in " + size + "/" + capacity + " bytes";
+        }
+    }
+
+    // Keeps read-only mappings of the most recently loaded files, at most maxMappings of them, so that
+    // loading a file again skips opening and closing it and sends it straight from the mapping. A mapping
+    // is counted once for being cached and once for every load using it, and is unmapped as soon as that
+    // count reaches zero: evicting or invalidating a file releases its mapping at once unless a load is
+    // still sending from it, in which case that load releases it when it finishes.
+    private static class MappedFileCache {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            // Unsafe.invokeCleaner is the only way to unmap a buffer before it is garbage collected
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("Cannot unmap files explicitly, leaving it to the garbage collector: " + e);
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        public static class Mapping {
+            private final MappedByteBuffer buffer;
+            private int references = 1;
+
+            private Mapping(MappedByteBuffer buffer) {
+                this.buffer = buffer;
+            }
+        }
+
+        private final int maxMappings;
+        private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+        private long generation;
+
+        public MappedFileCache(int maxMappings) {
+            this.maxMappings = maxMappings;
+        }
+
+        // Returns a mapping of the file that must be passed back to release, or null if the file is too
+        // large to map as one buffer
+        public Mapping acquire(File file) throws IOException {
+            String filename = file.getName();
+            long startGeneration;
+            synchronized (this) {
+                Mapping mapping = mappings.get(filename);
+                if (mapping != null) {
+                    mapping.references++;
+                    return mapping;
+                }
+                startGeneration = generation;
+            }
+            Mapping mapping;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long fileSize = channel.size();
+                if (fileSize > Integer.MAX_VALUE) {
+                    return null;
+                }
+                mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize));
+            }
+            synchronized (this) {
+                // A file invalidated while it was being mapped is used for this load only
+                if (startGeneration == generation && !mappings.containsKey(filename)) {
+                    mapping.references++;
+                    mappings.put(filename, mapping);
+                    Iterator<Mapping> eldest = mappings.values().iterator();
+                    while (mappings.size() > maxMappings && eldest.hasNext()) {
+                        Mapping evicted = eldest.next();
+                        eldest.remove();
+                        release(evicted);
+                    }
+                }
+            }
+            return mapping;
+        }
+
+        public synchronized void release(Mapping mapping) {
+            if (--mapping.references == 0) {
+                unmap(mapping.buffer);
+            }
+        }
+
+        public synchronized void invalidate(String filename) {
+            generation++;
+            Mapping mapping = mappings.remove(filename);
+            if (mapping != null) {
+                release(mapping);
+            }
+        }
+
+        private static void unmap(MappedByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Error unmapping file: " + e.getMessage());
             }
         }
     }
 
-    public void sendRebalanceComplete() {
-        controllerOut.println(Protocol.REBALANCE_COMPLETE_TOKEN);
+    // Names any file that did not reach all its new Dstores, so the Controller keeps it where it was
+    public void sendRebalanceComplete(PrintWriter replyOut, Set<String> failed) {
+        StringBuilder message = new StringBuilder(Protocol.REBALANCE_COMPLETE_TOKEN);
+        for (String filename : failed) {
+            message.append(" ").append(filename);
+        }
+        replyOut.println(message.toString());
         System.out.println("Sent rebalance complete to Controller");
     }
 
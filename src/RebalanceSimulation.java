@@ -0,0 +1,166 @@
+import java.util.*;
+
+// Reports how many bytes the rebalance planner moves for each Dstore joining or leaving, against the
+// round-robin reassignment it replaced and against the least any placement could move. Runs the
+// Controller's own planner over a simulated cluster, so no Dstores or sockets are involved.
+//
+// Usage: java RebalanceSimulation <dstores> <files> <replication_factor> [changes] [seed]
+public class RebalanceSimulation {
+    private static final int FIRST_PORT = 20000;
+
+    private final Controller controller;
+    private final int replicationFactor;
+    private final Map<String, Integer> fileSizes = new TreeMap<>();
+    // What each simulated Dstore holds
+    private final Map<Integer, Set<String>> holdings = new TreeMap<>();
+    private long totalBytes;
+
+    public RebalanceSimulation(int replicationFactor) {
+        this.replicationFactor = replicationFactor;
+        this.controller = new Controller(0, replicationFactor, 1000, 1);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 5) {
+            System.out.println("Usage: java RebalanceSimulation <dstores> <files> <replication_factor> [changes] [seed]");
+            return;
+        }
+        int dstores = Integer.parseInt(args[0]);
+        int files = Integer.parseInt(args[1]);
+        int replicationFactor = Integer.parseInt(args[2]);
+        int changes = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+        Random random = new Random(args.length > 4 ? Long.parseLong(args[4]) : 42);
+
+        RebalanceSimulation simulation = new RebalanceSimulation(replicationFactor);
+        simulation.populate(dstores, files, random);
+        int nextPort = FIRST_PORT + dstores;
+
+        System.out.println("change          dstores  planner bytes (% of data)  round-robin bytes (% of data)  least possible");
+        for (int i = 0; i < changes; i++) {
+            // Alternate joins and departures, so the cluster size stays around where it started
+            if (i % 2 == 0) {
+                simulation.report("join " + nextPort, nextPort, true);
+                nextPort++;
+            } else {
+                List<Integer> ports = new ArrayList<>(simulation.holdings.keySet());
+                int leaving = ports.get(random.nextInt(ports.size()));
+                simulation.report("leave " + leaving, leaving, false);
+            }
+        }
+        // The Controller's timer thread would otherwise keep the JVM alive
+        System.exit(0);
+    }
+
+    // Places files of 1 KiB to 1 MiB on random Dstores, then lets the planner settle them, so each
+    // change starts from the balanced state a running cluster would be in
+    private void populate(int dstores, int files, Random random) {
+        for (int i = 0; i < dstores; i++) {
+            holdings.put(FIRST_PORT + i, new HashSet<>());
+        }
+        List<Integer> ports = new ArrayList<>(holdings.keySet());
+        for (int i = 0; i < files; i++) {
+            String filename = "file" + i;
+            int filesize = 1024 + random.nextInt(1024 * 1024);
+            fileSizes.put(filename, filesize);
+            totalBytes += (long) filesize * replicationFactor;
+            controller.indexStoredFile(filename, filesize);
+            Collections.shuffle(ports, random);
+            for (int dstorePort : ports.subList(0, Math.min(replicationFactor, ports.size()))) {
+                holdings.get(dstorePort).add(filename);
+            }
+        }
+        settle();
+    }
+
+    private void report(String change, int dstorePort, boolean join) {
+        long leastPossible;
+        if (join) {
+            holdings.put(dstorePort, new HashSet<>());
+            // A fair share of the data has to land on the new Dstore
+            leastPossible = totalBytes / holdings.size();
+        } else {
+            // Every replica the departed Dstore held has to be made again elsewhere
+            leastPossible = bytesOf(holdings.remove(dstorePort));
+        }
+        long roundRobin = roundRobinBytes();
+        long planner = settle();
+        System.out.printf("%-15s %7d  %13d (%5.1f%%)  %17d (%5.1f%%)  %14d%n", change, holdings.size(),
+                planner, 100.0 * planner / totalBytes, roundRobin, 100.0 * roundRobin / totalBytes, leastPossible);
+    }
+
+    // Runs rebalances until one has nothing left to do, as the Controller would over successive periods,
+    // and returns the bytes copied between Dstores. A file being copied keeps its old replicas until the
+    // next round, exactly as the planner leaves it, so the rounds are the ones a real cluster would run.
+    private long settle() {
+        long moved = 0;
+        for (int round = 0; round < 10; round++) {
+            Map<Integer, List<String>> dstoreFiles = new HashMap<>();
+            for (Map.Entry<Integer, Set<String>> entry : holdings.entrySet()) {
+                dstoreFiles.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+            Map<String, Set<Integer>> allocation = controller.planAllocation(dstoreFiles);
+
+            boolean changed = false;
+            for (Map.Entry<String, Set<Integer>> entry : allocation.entrySet()) {
+                String filename = entry.getKey();
+                Set<Integer> current = holdersOf(filename);
+                Set<Integer> toAdd = new HashSet<>(entry.getValue());
+                toAdd.removeAll(current);
+                if (!toAdd.isEmpty()) {
+                    for (int dstorePort : toAdd) {
+                        holdings.get(dstorePort).add(filename);
+                    }
+                    moved += (long) fileSizes.get(filename) * toAdd.size();
+                    changed = true;
+                } else if (!current.equals(entry.getValue())) {
+                    for (int dstorePort : current) {
+                        if (!entry.getValue().contains(dstorePort)) {
+                            holdings.get(dstorePort).remove(filename);
+                        }
+                    }
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+        }
+        return moved;
+    }
+
+    // What the planner replaced: every file assigned afresh to replicationFactor consecutive Dstores,
+    // round-robin in name order
+    private long roundRobinBytes() {
+        List<Integer> ports = new ArrayList<>(holdings.keySet());
+        long moved = 0;
+        int next = 0;
+        for (Map.Entry<String, Integer> entry : fileSizes.entrySet()) {
+            Set<Integer> current = holdersOf(entry.getKey());
+            for (int i = 0; i < replicationFactor && i < ports.size(); i++) {
+                if (!current.contains(ports.get((next + i) % ports.size()))) {
+                    moved += entry.getValue();
+                }
+            }
+            next++;
+        }
+        return moved;
+    }
+
+    private Set<Integer> holdersOf(String filename) {
+        Set<Integer> holders = new HashSet<>();
+        for (Map.Entry<Integer, Set<String>> entry : holdings.entrySet()) {
+            if (entry.getValue().contains(filename)) {
+                holders.add(entry.getKey());
+            }
+        }
+        return holders;
+    }
+
+    private long bytesOf(Set<String> files) {
+        long bytes = 0;
+        for (String filename : files) {
+            bytes += fileSizes.get(filename);
+        }
+        return bytes;
+    }
+}